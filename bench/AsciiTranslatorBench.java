@@ -0,0 +1,135 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * ASCII行尾转换的内存基准测试，不经过网络和磁盘，单独比较 AsciiLineTranslator 与二进制直接复制的吞吐量：
+ * 下载方向把LF文本写入 toNetwork 包装的输出流，上传方向从 fromNetwork 包装的输入流读出CRLF文本，
+ * 二进制方向对同样的数据做不转换的写入和读取。数据按64 KB分块，与服务器传输时的缓冲区大小一致。
+ * 本地行尾为CRLF的系统（Windows）上转换是直通的，两者应当没有差别。
+ *
+ * 参数（-D系统属性）：bench.size.mb（文本大小，默认200）、bench.warmup（预热次数，默认3）、bench.rounds（计时次数，默认5）。
+ * 每项取计时中最快的一次。
+ */
+public class AsciiTranslatorBench {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // 测试文本的行长度（含LF），与 FtpBench 相同
+    private static final int LINE_LENGTH = 80;
+
+    public static void main(String[] args) throws IOException {
+        int sizeMb = Integer.getInteger("bench.size.mb", 200);
+        int warmup = Math.max(0, Integer.getInteger("bench.warmup", 3));
+        int rounds = Math.max(1, Integer.getInteger("bench.rounds", 5));
+
+        byte[] text = new byte[(int) Math.min((long) sizeMb * 1024 * 1024, Integer.MAX_VALUE / 2)];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = i % LINE_LENGTH == LINE_LENGTH - 1 ? (byte) '\n' : (byte) ('a' + i % 26);
+        }
+        byte[] networkText = toCrlf(text);
+
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int i = 0; i < warmup + rounds; i++) {
+            long[] nanos = {
+                timeWrite(text, true, networkText.length),
+                timeWrite(text, false, text.length),
+                timeRead(networkText, true, "\r\n".equals(System.lineSeparator()) ? networkText.length : text.length),
+                timeRead(networkText, false, networkText.length)
+            };
+            if (i >= warmup) {
+                for (int j = 0; j < best.length; j++) {
+                    best[j] = Math.min(best[j], nanos[j]);
+                }
+            }
+        }
+
+        System.out.printf("文本 %d MB（%d 字节一行），预热 %d 次，计时 %d 次取最快%n", text.length >> 20, LINE_LENGTH, warmup, rounds);
+        System.out.printf("%-6s %14s %14s %8s%n", "方向", "ASCII MB/s", "二进制 MB/s", "比值");
+        print("下载", text.length, best[0], best[1]);
+        print("上传", networkText.length, best[2], best[3]);
+    }
+
+    private static void print(String direction, long bytes, long asciiNanos, long binaryNanos) {
+        double ascii = bytes / 1048576.0 / (asciiNanos / 1e9);
+        double binary = bytes / 1048576.0 / (binaryNanos / 1e9);
+        System.out.printf("%-6s %14.1f %14.1f %8.2f%n", direction, ascii, binary, ascii / binary);
+    }
+
+    /**
+     * 分块写入本地文本，返回耗时；translate 为 true 时经过 toNetwork 转换
+     */
+    private static long timeWrite(byte[] text, boolean translate, long expectedBytes) throws IOException {
+        CountingSink sink = new CountingSink();
+        long start = System.nanoTime();
+        try (OutputStream out = translate ? AsciiLineTranslator.toNetwork(sink) : sink) {
+            for (int offset = 0; offset < text.length; offset += CHUNK_SIZE) {
+                out.write(text, offset, Math.min(CHUNK_SIZE, text.length - offset));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        check(sink.count, expectedBytes);
+        return elapsed;
+    }
+
+    /**
+     * 分块读出网络文本，返回耗时；translate 为 true 时经过 fromNetwork 转换
+     */
+    private static long timeRead(byte[] networkText, boolean translate, long expectedBytes) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long count = 0;
+        long start = System.nanoTime();
+        try (InputStream source = new ByteArrayInputStream(networkText);
+             InputStream in = translate ? AsciiLineTranslator.fromNetwork(source) : source) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                count += n;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        check(count, expectedBytes);
+        return elapsed;
+    }
+
+    private static void check(long actual, long expected) {
+        if (actual != expected) {
+            throw new IllegalStateException("转换后的长度不符：期望 " + expected + "，实际 " + actual);
+        }
+    }
+
+    private static byte[] toCrlf(byte[] text) {
+        byte[] result = new byte[text.length + text.length / LINE_LENGTH];
+        int position = 0;
+        for (byte b : text) {
+            if (b == '\n') {
+                result[position++] = '\r';
+            }
+            result[position++] = b;
+        }
+        return result;
+    }
+
+    /**
+     * 把写入的数据复制到一块暂存区后丢弃的输出流，相当于一个无限快的数据连接（写Socket同样要复制一次数据）
+     */
+    private static final class CountingSink extends OutputStream {
+        private final byte[] scratch = new byte[CHUNK_SIZE];
+        long count;
+
+        @Override
+        public void write(int b) {
+            scratch[0] = (byte) b;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, scratch.length);
+                System.arraycopy(b, off, scratch, 0, n);
+                off += n;
+                len -= n;
+                count += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * FTP传输基准测试，连接一台正在运行的服务器，比较以下组合的传输速度：
+ * plain-I（明文、二进制）、plain-A（明文、ASCII）、tls-I（AUTH TLS + PROT P、二进制）、tls-A（加密、ASCII）。
+ * 每种组合重复下载和上传同一个LF行尾的文本文件，并连续下载大量小文件——
+ * 小文件时每个数据连接的建立（加密时还有TLS握手）占主要开销；"会话恢复"列为恢复了已有TLS会话（未重新校验证书）的数据连接数。
+ * TLS 1.3的会话票据在控制连接握手之后才送达，最初几个数据连接做完整握手属于正常现象。
+ * 测试文件写在用户根目录下的 bench-*.txt，结束后删除。
+ *
+ * 参数（-D系统属性）：bench.host、bench.port、bench.user、bench.password、
+ * bench.size.mb（大文件大小，默认64）、bench.rounds（大文件重复次数，默认3）、bench.small.files（小文件下载次数，默认200）。
+ * 命令行参数为要测试的组合，默认全部四种。加密组合只能用于 tls.enabled=true 的服务器；
+ * 客户端信任任何证书，只用于本机自签名密钥库的测试。
+ */
+public class FtpBench {
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+    // 测试文本的行长度（含LF）
+    private static final int LINE_LENGTH = 80;
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("bench.host", "127.0.0.1");
+        int port = Integer.getInteger("bench.port", 2121);
+        String user = System.getProperty("bench.user", "user");
+        String password = System.getProperty("bench.password", "pass");
+        int sizeMb = Integer.getInteger("bench.size.mb", 64);
+        int rounds = Math.max(1, Integer.getInteger("bench.rounds", 3));
+        int smallFiles = Math.max(0, Integer.getInteger("bench.small.files", 200));
+        List<String> modes = args.length > 0 ? Arrays.asList(args) : Arrays.asList("plain-I", "plain-A", "tls-I", "tls-A");
+
+        // 本地形式（LF）与网络形式（CRLF）的同一份文本：TYPE I 上传本地形式，TYPE A 上传网络形式
+        byte[] text = buildText((long) sizeMb * 1024 * 1024);
+        byte[] networkText = toCrlf(text);
+        byte[] small = Arrays.copyOf(text, 1024);
+
+        System.out.printf("服务器 %s:%d，大文件 %d MB × %d 次，小文件 1 KB × %d 次%n", host, port, sizeMb, rounds, smallFiles);
+        System.out.printf("%-8s %12s %12s %16s %10s%n", "组合", "下载 MB/s", "上传 MB/s", "小文件 ms/个", "会话恢复");
+        for (String mode : modes) {
+            if (!mode.matches("(plain|tls)-[AaIi]")) {
+                System.out.println("未知的组合：" + mode + "（可用 plain-I、plain-A、tls-I、tls-A）");
+                continue;
+            }
+            boolean tls = mode.startsWith("tls");
+            char type = Character.toUpperCase(mode.charAt(mode.length() - 1));
+            try (Client client = new Client(host, port, tls)) {
+                client.login(user, password);
+                client.command("TYPE " + type, 200);
+                byte[] upload = type == 'A' ? networkText : text;
+                String bigName = "bench-" + mode + ".txt";
+                String smallName = "bench-" + mode + "-small.txt";
+
+                client.store(bigName, upload);
+                client.store(smallName, type == 'A' ? toCrlf(small) : small);
+
+                long downloadNanos = 0;
+                long uploadNanos = 0;
+                long downloaded = 0;
+                for (int i = 0; i < rounds; i++) {
+                    long start = System.nanoTime();
+                    downloaded += client.retrieve(bigName);
+                    downloadNanos += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    client.store(bigName, upload);
+                    uploadNanos += System.nanoTime() - start;
+                }
+
+                long smallStart = System.nanoTime();
+                for (int i = 0; i < smallFiles; i++) {
+                    client.retrieve(smallName);
+                }
+                long smallNanos = System.nanoTime() - smallStart;
+
+                client.command("DELE " + bigName, 250);
+                client.command("DELE " + smallName, 250);
+
+                double downloadRate = downloaded / 1048576.0 / (downloadNanos / 1e9);
+                double uploadRate = (double) upload.length * rounds / 1048576.0 / (uploadNanos / 1e9);
+                double smallMillis = smallFiles == 0 ? 0 : smallNanos / 1e6 / smallFiles;
+                String resumed = tls ? client.resumedConnections + "/" + client.dataConnections : "-";
+                System.out.printf("%-8s %12.1f %12.1f %16.2f %10s%n", mode, downloadRate, uploadRate, smallMillis, resumed);
+            } catch (IOException e) {
+                System.out.println(mode + " 失败：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 生成指定大小、LF行尾的ASCII文本
+     */
+    private static byte[] buildText(long size) {
+        byte[] text = new byte[(int) Math.min(size, Integer.MAX_VALUE - 16)];
+        byte[] line = new byte[LINE_LENGTH];
+        for (int i = 0; i < text.length; i += LINE_LENGTH) {
+            String prefix = String.format("%010d ", i / LINE_LENGTH);
+            for (int j = 0; j < LINE_LENGTH - 1; j++) {
+                line[j] = j < prefix.length() ? (byte) prefix.charAt(j) : (byte) ('a' + j % 26);
+            }
+            line[LINE_LENGTH - 1] = '\n';
+            System.arraycopy(line, 0, text, i, Math.min(LINE_LENGTH, text.length - i));
+        }
+        return text;
+    }
+
+    private static byte[] toCrlf(byte[] text) {
+        int lines = 0;
+        for (byte b : text) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        byte[] result = new byte[text.length + lines];
+        int position = 0;
+        for (byte b : text) {
+            if (b == '\n') {
+                result[position++] = '\r';
+            }
+            result[position++] = b;
+        }
+        return result;
+    }
+
+    /**
+     * 最小的FTP客户端：被动模式，可选AUTH TLS + PROT P
+     */
+    private static final class Client implements AutoCloseable {
+        private final String host;
+        private final int port;
+        private final SSLSocketFactory tlsFactory;
+        private Socket control;
+        private BufferedReader reader;
+        private PrintWriter writer;
+        // 服务器证书的校验次数：恢复会话的握手不再校验证书（TLS 1.2和1.3都如此），
+        // 比较会话ID只适用于TLS 1.2，TLS 1.3恢复后的会话ID是新的
+        private int certificateChecks;
+        // 数据连接总数，以及其中恢复了控制连接TLS会话的数量
+        int dataConnections;
+        int resumedConnections;
+
+        Client(String host, int port, boolean tls) throws IOException, GeneralSecurityException {
+            this.host = host;
+            this.port = port;
+            this.tlsFactory = tls ? trustAllContext().getSocketFactory() : null;
+            control = new Socket();
+            // 命令和握手消息都是小数据段，与服务器一样关闭Nagle算法，否则每条命令都可能等待对端的延迟确认
+            control.setTcpNoDelay(true);
+            control.connect(new InetSocketAddress(host, port), 10000);
+            attach(control);
+            expect(220);
+            if (tlsFactory != null) {
+                command("AUTH TLS", 234);
+                SSLSocket secured = (SSLSocket) tlsFactory.createSocket(control, host, port, true);
+                secured.startHandshake();
+                control = secured;
+                attach(control);
+            }
+        }
+
+        void login(String user, String password) throws IOException {
+            command("USER " + user, 331);
+            command("PASS " + password, 230);
+            if (tlsFactory != null) {
+                command("PBSZ 0", 200);
+                command("PROT P", 200);
+            }
+        }
+
+        long retrieve(String name) throws IOException {
+            long total = 0;
+            try (Socket data = openData("RETR " + name)) {
+                InputStream in = data.getInputStream();
+                byte[] buffer = new byte[256 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    total += n;
+                }
+            }
+            expect(226);
+            return total;
+        }
+
+        void store(String name, byte[] content) throws IOException {
+            try (Socket data = openData("STOR " + name)) {
+                OutputStream out = data.getOutputStream();
+                for (int offset = 0; offset < content.length; offset += 256 * 1024) {
+                    out.write(content, offset, Math.min(256 * 1024, content.length - offset));
+                }
+                out.flush();
+            }
+            expect(226);
+        }
+
+        /**
+         * 发送PASV并建立数据连接，再发送传输命令；加密时在数据连接上完成TLS握手。
+         * JSSE客户端按"主机:Socket实际端口"查找可恢复的会话，而每个数据连接的端口都不同，
+         * 因此数据Socket的 getPort() 返回控制连接的端口，客户端才会提供控制连接的会话（服务器端无此限制）。
+         */
+        private Socket openData(String transferCommand) throws IOException {
+            String reply = command("PASV", 227);
+            Matcher matcher = PASV_REPLY.matcher(reply);
+            if (!matcher.find()) {
+                throw new IOException("无法解析PASV回复：" + reply);
+            }
+            int dataPort = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+            Socket data = new Socket() {
+                @Override
+                public int getPort() {
+                    return port;
+                }
+            };
+            data.setTcpNoDelay(true);
+            data.connect(new InetSocketAddress(host, dataPort), 10000);
+            send(transferCommand);
+            if (tlsFactory != null) {
+                SSLSocket secured = (SSLSocket) tlsFactory.createSocket(data, host, port, true);
+                int checksBefore = certificateChecks;
+                secured.startHandshake();
+                dataConnections++;
+                if (certificateChecks == checksBefore) {
+                    resumedConnections++;
+                }
+                data = secured;
+            }
+            expect(150);
+            return data;
+        }
+
+        String command(String command, int expectedCode) throws IOException {
+            send(command);
+            return expect(expectedCode);
+        }
+
+        private void send(String command) {
+            writer.print(command + "\r\n");
+            writer.flush();
+        }
+
+        /**
+         * 读取一条（可能多行的）回复，回复码不符时抛出异常
+         */
+        private String expect(int expectedCode) throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("控制连接已关闭");
+            }
+            StringBuilder reply = new StringBuilder(line);
+            if (line.length() > 3 && line.charAt(3) == '-') {
+                String end = line.substring(0, 3) + " ";
+                while ((line = reader.readLine()) != null && !line.startsWith(end)) {
+                    reply.append('\n').append(line);
+                }
+                if (line != null) {
+                    reply.append('\n').append(line);
+                }
+            }
+            if (!reply.toString().startsWith(String.valueOf(expectedCode))) {
+                throw new IOException("期望 " + expectedCode + "，收到：" + reply);
+            }
+            return reply.toString();
+        }
+
+        private void attach(Socket socket) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                send("QUIT");
+            } finally {
+                control.close();
+            }
+        }
+
+        private SSLContext trustAllContext() throws GeneralSecurityException {
+            TrustManager trustAll = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                    certificateChecks++;
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] {trustAll}, null);
+            return context;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# 在本机启动一个启用FTPS的临时服务器并运行 FtpBench，比较明文/加密、二进制/ASCII 传输。
+# 用法：bench/run.sh [组合...]，例如 bench/run.sh plain-I tls-I
+# 环境变量：BENCH_PORT（默认2121）、BENCH_SIZE_MB（默认64）、BENCH_ROUNDS（默认3）、BENCH_SMALL_FILES（默认200）
+#           BENCH_CLIENT_OPTS（客户端JVM参数，例如 -Djdk.tls.client.protocols=TLSv1.2）
+set -e
+
+PROJECT_DIR=$(cd "$(dirname "$0")/.." && pwd)
+PORT=${BENCH_PORT:-2121}
+WORK_DIR=$(mktemp -d)
+trap 'kill $SERVER_PID 2>/dev/null; wait $SERVER_PID 2>/dev/null; rm -rf "$WORK_DIR"' EXIT
+
+# 编译服务器和基准测试
+mkdir -p "$WORK_DIR/classes" "$WORK_DIR/root"
+javac -encoding UTF-8 -d "$WORK_DIR/classes" "$PROJECT_DIR"/src/*.java "$PROJECT_DIR"/bench/*.java
+
+# 临时密钥库放在FTP根目录之外，口令随机生成
+PASSWORD=$(od -An -N12 -tx1 /dev/urandom | tr -d ' \n')
+keytool -genkeypair -alias ftp -keyalg EC -groupname secp256r1 -dname CN=localhost -validity 1 \
+    -storetype PKCS12 -keystore "$WORK_DIR/bench.p12" -storepass "$PASSWORD" > /dev/null 2>&1
+printf 'bench=bench\n' > "$WORK_DIR/users.properties"
+
+# 服务器从工作目录读取 users.properties，用户根目录是其下的 root
+(cd "$WORK_DIR" && exec java -cp "$WORK_DIR/classes" -Dserver.port="$PORT" -Dftp.root="$WORK_DIR/root" \
+    -Daudit.log.dir="$WORK_DIR/logs" -Dtls.enabled=true -Dtls.keystore="$WORK_DIR/bench.p12" \
+    -Dtls.keystore.password="$PASSWORD" FtpServer > "$WORK_DIR/server.out" 2>&1) &
+SERVER_PID=$!
+
+# 等待控制端口开始监听
+for i in $(seq 1 50); do
+    grep -q "FTP Server started" "$WORK_DIR/server.out" 2>/dev/null && break
+    sleep 0.2
+done
+
+java $BENCH_CLIENT_OPTS -cp "$WORK_DIR/classes" -Dbench.port="$PORT" -Dbench.user=bench -Dbench.password=bench \
+    -Dbench.size.mb="${BENCH_SIZE_MB:-64}" -Dbench.rounds="${BENCH_ROUNDS:-3}" \
+    -Dbench.small.files="${BENCH_SMALL_FILES:-200}" FtpBench "$@"
@@ -0,0 +1,278 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * ASCII模式（TYPE A）的行尾转换。
+ * 网络上的行尾固定为CRLF，本地文件使用服务器平台的行尾：下载时把单独的LF转换为CRLF，
+ * 上传时把CRLF转换回本地行尾。服务器平台本身使用CRLF时两个方向都不需要转换。
+ * 转换以整块数据为单位：每次按8字节一组查找下一个行尾字符，中间的数据整段复制，
+ * 只有行尾处才逐字节处理，吞吐量接近二进制模式。
+ * 转换缓冲区从 {@link BufferPool} 租用，关闭流时归还。
+ */
+public final class AsciiLineTranslator {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    // 按小端序把字节数组当作long读取，用于一次检查8个字节
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // 本地行尾就是CRLF时（Windows）不需要任何转换
+    private static final boolean IDENTITY = "\r\n".equals(System.lineSeparator());
+
+    // 转换缓冲区大小（实际大小受缓冲区池最大等级限制）
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AsciiLineTranslator() {
+    }
+
+    /**
+     * 包装发往客户端的输出流，把本地文本的单独LF转换为CRLF，已有的CRLF保持不变。
+     * @param networkOut 数据连接的输出流
+     * @return 写入本地文本内容的输出流
+     */
+    public static OutputStream toNetwork(OutputStream networkOut) {
+        return IDENTITY ? networkOut : new NetworkOutputStream(networkOut);
+    }
+
+    /**
+     * 包装来自客户端的输入流，把CRLF转换为本地行尾，单独的CR保持不变。
+     * @param networkIn 数据连接的输入流
+     * @return 读出本地文本内容的输入流
+     */
+    public static InputStream fromNetwork(InputStream networkIn) {
+        return IDENTITY ? networkIn : new LocalInputStream(networkIn);
+    }
+
+    /**
+     * 在 array[from, to) 中查找第一个等于 target 的字节。
+     * 每次读取8个字节，用"是否含零字节"的位运算判断其中是否有目标字节。
+     * @return 目标字节的下标，未找到时返回-1
+     */
+    static int indexOf(byte[] array, int from, int to, byte target) {
+        long pattern = (target & 0xFFL) * ONES;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(array, i) ^ pattern;
+            long found = (word - ONES) & ~word & HIGH_BITS;
+            if (found != 0) {
+                // 最低位的标记一定对应真正的匹配，小端序下即为最靠前的字节
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (array[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 下载方向：LF转换为CRLF
+     */
+    private static final class NetworkOutputStream extends FilterOutputStream {
+        private final BufferPool.Lease lease = BufferPool.getInstance().acquire(BUFFER_SIZE, false);
+        private final byte[] buffer = lease.buffer().array();
+        private int count;
+        // 关闭后缓冲区已归还，重复关闭时不能再写出其中的数据
+        private boolean closed;
+        // 上一次写入的最后一个字节是否为CR，CRLF可能被拆在两次写入之间
+        private boolean lastWasCR;
+
+        NetworkOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int position = off;
+            while (position < end) {
+                int lineFeed = indexOf(b, position, end, LF);
+                int runEnd = lineFeed < 0 ? end : lineFeed;
+                append(b, position, runEnd - position);
+                if (lineFeed < 0) {
+                    break;
+                }
+                boolean precededByCR = lineFeed > off ? b[lineFeed - 1] == CR : lastWasCR;
+                if (!precededByCR) {
+                    appendByte(CR);
+                }
+                appendByte(LF);
+                position = lineFeed + 1;
+            }
+            if (len > 0) {
+                lastWasCR = b[end - 1] == CR;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushBuffer();
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    lease.close();
+                }
+            }
+        }
+
+        private void append(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.length - count) {
+                flushBuffer();
+                if (len >= buffer.length) {
+                    // 很长的一段没有换行的数据直接写出，不再经过缓冲区
+                    out.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void appendByte(byte b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = b;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * 上传方向：CRLF转换为LF
+     */
+    private static final class LocalInputStream extends FilterInputStream {
+        private final BufferPool.Lease lease = BufferPool.getInstance().acquire(BUFFER_SIZE, false);
+        private final byte[] raw = lease.buffer().array();
+        // raw中尚未转换的数据范围
+        private int position;
+        private int limit;
+        private boolean endOfStream;
+
+        LocalInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            // 末尾的CR要看到下一个字节才能决定是否丢弃
+            while (limit == position || (limit - position == 1 && raw[position] == CR && !endOfStream)) {
+                if (endOfStream) {
+                    return -1;
+                }
+                fill();
+            }
+
+            int end = !endOfStream && raw[limit - 1] == CR ? limit - 1 : limit;
+            int produced = 0;
+            while (position < end && produced < len) {
+                int carriageReturn = indexOf(raw, position, end, CR);
+                int runEnd = carriageReturn < 0 ? end : carriageReturn;
+                int n = Math.min(runEnd - position, len - produced);
+                System.arraycopy(raw, position, b, off + produced, n);
+                position += n;
+                produced += n;
+                if (position == carriageReturn && produced < len) {
+                    position++;
+                    if (carriageReturn + 1 >= limit || raw[carriageReturn + 1] != LF) {
+                        // 单独的CR原样保留
+                        b[off + produced++] = CR;
+                    }
+                }
+            }
+            return produced;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return 0;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // 跳过的是转换后的字节，不能直接跳过底层流
+            byte[] discard = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(discard, 0, (int) Math.min(n - skipped, discard.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                lease.close();
+            }
+        }
+
+        /**
+         * 把未转换的数据移到缓冲区开头，再从网络读取更多数据
+         */
+        private void fill() throws IOException {
+            int remaining = limit - position;
+            System.arraycopy(raw, position, raw, 0, remaining);
+            position = 0;
+            limit = remaining;
+            int n = in.read(raw, limit, raw.length - limit);
+            if (n < 0) {
+                endOfStream = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+}
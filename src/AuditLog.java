@@ -0,0 +1,370 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步审计日志。
+ * 会话线程只负责格式化记录并放入无锁环形缓冲区，由唯一的后台写线程批量写入磁盘：
+ * 传输记录写入xferlog格式的 xferlog 文件，登录、文件操作和错误写入 audit.log 文件，
+ * 两个文件都按大小或时间轮转。
+ */
+public final class AuditLog {
+    /**
+     * 缓冲区已满时的处理策略
+     */
+    public enum OverflowPolicy {
+        // 丢弃新记录并计数
+        DROP,
+        // 阻塞会话线程直到有空位
+        BLOCK
+    }
+
+    private static final DateTimeFormatter XFERLOG_TIME = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH);
+    private static final DateTimeFormatter EVENT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final DateTimeFormatter ROTATE_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final boolean ENABLED;
+    private static final OverflowPolicy OVERFLOW_POLICY;
+    private static final AuditRingBuffer<Entry> BUFFER;
+    private static final int BATCH_SIZE;
+    private static final long FLUSH_INTERVAL_NANOS;
+    private static final long ROTATE_MAX_BYTES;
+    private static final long ROTATE_INTERVAL_MS;
+    private static final Path LOG_DIRECTORY;
+
+    // 因缓冲区已满而丢弃的记录数
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static volatile boolean running;
+    private static Thread writerThread;
+
+    static {
+        ServerConfig config = ServerConfig.getInstance();
+        ENABLED = config.getBoolean("audit.enabled", true);
+        OVERFLOW_POLICY = "BLOCK".equalsIgnoreCase(config.getString("audit.overflow", "DROP")) ? OverflowPolicy.BLOCK : OverflowPolicy.DROP;
+        BUFFER = new AuditRingBuffer<>(config.getInt("audit.buffer.capacity", 8192));
+        BATCH_SIZE = Math.max(1, config.getInt("audit.batch.size", 256));
+        FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getLong("audit.flush.interval.ms", 200)));
+        ROTATE_MAX_BYTES = config.getLong("audit.rotate.max.bytes", 64L * 1024 * 1024);
+        ROTATE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(config.getLong("audit.rotate.interval.minutes", 1440));
+        LOG_DIRECTORY = Paths.get(config.getString("audit.log.dir", Paths.get(System.getProperty("user.dir"), "logs").toString()));
+
+        if (ENABLED) {
+            running = true;
+            writerThread = new Thread(AuditLog::writeLoop, "ftp-audit-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    private AuditLog() {
+    }
+
+    /**
+     * 记录一次完整或中断的文件传输（xferlog格式）。
+     * @param remoteHost 客户端地址
+     * @param elapsedMillis 传输耗时
+     * @param bytes 实际传输的字节数
+     * @param path 服务器上的文件路径
+     * @param ascii 是否为ASCII模式传输
+     * @param incoming true表示上传，false表示下载
+     * @param username 登录用户名
+     * @param complete 传输是否完整结束
+     */
+    public static void transfer(String remoteHost, long elapsedMillis, long bytes, Path path, boolean ascii,
+                                boolean incoming, String username, boolean complete) {
+        if (!ENABLED) {
+            return;
+        }
+        long seconds = Math.max(1, (elapsedMillis + 999) / 1000);
+        String line = String.format("%s %d %s %d %s %c _ %c r %s ftp 0 * %c",
+                LocalDateTime.now().format(XFERLOG_TIME), seconds, remoteHost, bytes,
+                String.valueOf(path).replace(' ', '_'), ascii ? 'a' : 'b', incoming ? 'i' : 'o',
+                username == null ? "-" : username, complete ? 'c' : 'i');
+        enqueue(new Entry(true, line));
+    }
+
+    /**
+     * 记录一次登录尝试。
+     * @param remoteHost 客户端地址
+     * @param username 登录用户名
+     * @param success 是否登录成功
+     */
+    public static void login(String remoteHost, String username, boolean success) {
+        event("INFO", remoteHost, username, success ? "LOGIN ok" : "LOGIN failed");
+    }
+
+    /**
+     * 记录一次文件或目录操作。
+     * @param remoteHost 客户端地址
+     * @param username 登录用户名
+     * @param operation FTP命令名称，例如DELE、MKD
+     * @param path 操作的路径
+     * @param success 操作是否成功
+     */
+    public static void fileOperation(String remoteHost, String username, String operation, Object path, boolean success) {
+        event("INFO", remoteHost, username, operation + " " + path + (success ? " ok" : " failed"));
+    }
+
+    /**
+     * 记录一条服务器消息。
+     * @param message 消息内容
+     */
+    public static void info(String message) {
+        event("INFO", "-", "-", message);
+    }
+
+    /**
+     * 记录一个异常，取代散落在各处的 e.printStackTrace()。
+     * @param message 发生异常时正在进行的操作
+     * @param error 捕获到的异常
+     */
+    public static void error(String message, Throwable error) {
+        StringWriter trace = new StringWriter();
+        if (error != null) {
+            error.printStackTrace(new PrintWriter(trace));
+        }
+        if (!ENABLED) {
+            System.err.println(message);
+            System.err.print(trace);
+            return;
+        }
+        event("ERROR", "-", "-", message + System.lineSeparator() + trace.toString().trim());
+    }
+
+    /**
+     * @return 当前在缓冲区中等待写入的记录数
+     */
+    public static int getQueueDepth() {
+        return BUFFER.size();
+    }
+
+    /**
+     * @return 因缓冲区已满而被丢弃的记录总数
+     */
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return 日志目录。目录位于FTP根目录内时，客户端也不能访问其中的文件
+     */
+    public static Path getLogDirectory() {
+        return LOG_DIRECTORY;
+    }
+
+    /**
+     * 审计日志的JMX统计，注册名为 ftpserver:type=AuditLog
+     * @return 统计接口的实现
+     */
+    public static AuditLogMBean statistics() {
+        return new AuditLogMBean() {
+            @Override
+            public int getQueueDepth() {
+                return AuditLog.getQueueDepth();
+            }
+
+            @Override
+            public int getCapacity() {
+                return BUFFER.capacity();
+            }
+
+            @Override
+            public long getDroppedCount() {
+                return AuditLog.getDroppedCount();
+            }
+        };
+    }
+
+    /**
+     * 停止写线程并把缓冲区中剩余的记录全部写入磁盘。
+     * 由服务器在关闭流程的最后调用，之后产生的记录会被丢弃。
+     */
+    public static void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void event(String level, String remoteHost, String username, String detail) {
+        if (!ENABLED) {
+            return;
+        }
+        String line = LocalDateTime.now().format(EVENT_TIME) + " " + level + " " + remoteHost + " "
+                + (username == null ? "-" : username) + " " + detail;
+        enqueue(new Entry(false, line));
+    }
+
+    private static void enqueue(Entry entry) {
+        if (BUFFER.offer(entry)) {
+            return;
+        }
+        if (OVERFLOW_POLICY == OverflowPolicy.DROP || !running) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        // BLOCK策略：唤醒写线程尽快腾出空间，然后短暂等待后重试
+        while (!BUFFER.offer(entry)) {
+            if (!running) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    /**
+     * 后台写线程主循环：批量取出记录写入文件，空闲时按刷新间隔休眠。
+     */
+    private static void writeLoop() {
+        RotatingFile xferlog = new RotatingFile(LOG_DIRECTORY.resolve("xferlog"));
+        RotatingFile auditLog = new RotatingFile(LOG_DIRECTORY.resolve("audit.log"));
+        long reportedDrops = 0;
+        long lastFlush = System.nanoTime();
+
+        while (true) {
+            boolean stopping = !running;
+            int written = 0;
+            Entry entry;
+            while (written < BATCH_SIZE && (entry = BUFFER.poll()) != null) {
+                (entry.transfer ? xferlog : auditLog).append(entry.line);
+                written++;
+            }
+
+            long drops = droppedCount.get();
+            if (drops != reportedDrops) {
+                auditLog.append(LocalDateTime.now().format(EVENT_TIME) + " WARN - - 审计缓冲区已满，累计丢弃 " + drops + " 条记录");
+                reportedDrops = drops;
+            }
+
+            long now = System.nanoTime();
+            if (written < BATCH_SIZE || now - lastFlush >= FLUSH_INTERVAL_NANOS) {
+                xferlog.flush();
+                auditLog.flush();
+                lastFlush = now;
+            }
+
+            if (written == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+        }
+
+        xferlog.close();
+        auditLog.close();
+    }
+
+    /**
+     * 缓冲区中的一条记录
+     */
+    private static final class Entry {
+        final boolean transfer;
+        final String line;
+
+        Entry(boolean transfer, String line) {
+            this.transfer = transfer;
+            this.line = line;
+        }
+    }
+
+    /**
+     * 按大小或时间轮转的日志文件，只由写线程访问。
+     */
+    private static final class RotatingFile {
+        private final Path path;
+        private BufferedWriter out;
+        private long size;
+        private long openedAt;
+
+        RotatingFile(Path path) {
+            this.path = path;
+        }
+
+        void append(String line) {
+            try {
+                if (out == null) {
+                    open();
+                } else if (needsRotation()) {
+                    rotate();
+                }
+                out.write(line);
+                out.newLine();
+                size += line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length();
+            } catch (IOException e) {
+                // 日志本身写入失败时只能退回标准错误，避免递归进入缓冲区
+                System.err.println("写入审计日志 " + path + " 失败：" + e.getMessage());
+                System.err.println(line);
+                close();
+            }
+        }
+
+        void flush() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("刷新审计日志 " + path + " 失败：" + e.getMessage());
+            }
+        }
+
+        void close() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("关闭审计日志 " + path + " 失败：" + e.getMessage());
+            }
+            out = null;
+        }
+
+        private boolean needsRotation() {
+            if (ROTATE_MAX_BYTES > 0 && size >= ROTATE_MAX_BYTES) {
+                return true;
+            }
+            return ROTATE_INTERVAL_MS > 0 && System.currentTimeMillis() - openedAt >= ROTATE_INTERVAL_MS;
+        }
+
+        private void open() throws IOException {
+            Files.createDirectories(path.getParent());
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(path);
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void rotate() throws IOException {
+            close();
+            String suffix = LocalDateTime.now().format(ROTATE_SUFFIX);
+            Path target = path.resolveSibling(path.getFileName() + "." + suffix);
+            for (int i = 1; Files.exists(target); i++) {
+                target = path.resolveSibling(path.getFileName() + "." + suffix + "-" + i);
+            }
+            Files.move(path, target);
+            open();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * 审计日志的JMX管理接口（只读统计），注册名为 ftpserver:type=AuditLog。
+ */
+public interface AuditLogMBean {
+    /**
+     * @return 当前在缓冲区中等待写入的记录数
+     */
+    int getQueueDepth();
+
+    /**
+     * @return 缓冲区容量
+     */
+    int getCapacity();
+
+    /**
+     * @return 因缓冲区已满而被丢弃的记录总数
+     */
+    long getDroppedCount();
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁有界环形缓冲区（多生产者、单消费者）。
+ * 每个槽位带一个序号：序号等于写入位置时槽位可写，等于写入位置+1时槽位可读，
+ * 生产者之间只通过一次CAS竞争写入位置，不会互相阻塞。
+ * @param <E> 元素类型
+ */
+public class AuditRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    // 下一个写入位置，由所有生产者竞争
+    private final AtomicLong tail = new AtomicLong();
+    // 下一个读取位置，只由唯一的消费者线程修改
+    private volatile long head;
+
+    /**
+     * 构造函数
+     * @param requestedCapacity 期望容量，会向上取整为2的幂
+     */
+    public AuditRingBuffer(int requestedCapacity) {
+        int size = 1;
+        while (size < Math.max(2, requestedCapacity)) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 尝试放入一个元素，缓冲区已满时立即返回。
+     * @param element 要放入的元素
+     * @return 放入成功返回true，缓冲区已满返回false
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, element);
+                    // 发布：消费者看到新序号时必然能看到上面写入的元素
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // 槽位仍被上一轮的元素占用，说明缓冲区已满
+                return false;
+            }
+            // difference > 0：其他生产者已抢占该位置，重新读取写入位置
+        }
+    }
+
+    /**
+     * 取出一个元素，只允许单个消费者线程调用。
+     * @return 队首元素，缓冲区为空（或队首元素尚未发布完成）时返回null
+     */
+    public E poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = slots.get(index);
+        slots.lazySet(index, null);
+        // 释放槽位给下一轮的生产者
+        sequences.set(index, position + capacity);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * 当前排队的元素数量（近似值）
+     * @return 队列深度
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * @return 缓冲区容量
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
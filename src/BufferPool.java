@@ -0,0 +1,245 @@
+import java.io.Closeable;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全局共享的传输缓冲区池。
+ * 缓冲区按2的幂分为若干大小等级，每个等级分别保存直接缓冲区（用于通道读写）和堆缓冲区
+ * （用于只能接受byte[]的TLS和ASCII流）。传输结束后缓冲区回到池中，
+ * 大量并发传输不会反复分配大块内存，也不必为了节省内存而使用很小的缓冲区。
+ * 申请方通过 {@link Lease} 持有缓冲区；租约未归还就被回收时记录一次泄漏并丢弃缓冲区：
+ * 泄漏的缓冲区可能仍被其他对象（例如未关闭的流）引用，放回池中会让两个使用者共享同一块内存。
+ */
+public final class BufferPool implements BufferPoolMBean {
+    // 全局唯一的缓冲区池
+    private static final BufferPool INSTANCE = new BufferPool();
+
+    // 检测未归还租约的清理器，其线程是守护线程
+    private static final Cleaner LEAK_DETECTOR = Cleaner.create();
+
+    // 最小、最大大小等级
+    private final int minClassSize;
+    private final int maxClassSize;
+    // 池中最多保留的空闲缓冲区总字节数，超过后归还的缓冲区直接丢弃
+    private final long maxRetainedBytes;
+    // 按大小等级保存的空闲缓冲区，后进先出以便复用最近使用过的内存
+    private final ConcurrentLinkedDeque<ByteBuffer>[] directFree;
+    private final ConcurrentLinkedDeque<ByteBuffer>[] heapFree;
+
+    // 统计数据
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong leasedBytes = new AtomicLong();
+    private final AtomicLong peakLeasedBytes = new AtomicLong();
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * 构造函数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.minClassSize = roundUpToPowerOfTwo(Math.max(1024, config.getInt("buffer.pool.min.size", 8 * 1024)));
+        this.maxClassSize = Math.max(minClassSize, roundUpToPowerOfTwo(config.getInt("buffer.pool.max.size", 1024 * 1024)));
+        this.maxRetainedBytes = config.getLong("buffer.pool.max.retained.mb", 64) * 1024 * 1024;
+        int classes = Integer.numberOfTrailingZeros(maxClassSize) - Integer.numberOfTrailingZeros(minClassSize) + 1;
+        this.directFree = new ConcurrentLinkedDeque[classes];
+        this.heapFree = new ConcurrentLinkedDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            directFree[i] = new ConcurrentLinkedDeque<>();
+            heapFree[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * 获取全局缓冲区池
+     * @return 缓冲区池
+     */
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 租用一个缓冲区，使用完毕后必须关闭租约（建议使用try-with-resources）。
+     * @param size 需要的大小，向上取整到大小等级，并限制在最小和最大等级之间
+     * @param direct true表示直接缓冲区，false表示带有byte[]的堆缓冲区
+     * @return 租约，其中的缓冲区已清空，容量不小于限制后的大小
+     */
+    public Lease acquire(int size, boolean direct) {
+        int classIndex = classIndexFor(size);
+        ConcurrentLinkedDeque<ByteBuffer> free = (direct ? directFree : heapFree)[classIndex];
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer != null) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        } else {
+            int classSize = minClassSize << classIndex;
+            buffer = direct ? ByteBuffer.allocateDirect(classSize) : ByteBuffer.allocate(classSize);
+            allocationCount.incrementAndGet();
+        }
+
+        leaseCount.incrementAndGet();
+        long leased = leasedBytes.addAndGet(buffer.capacity());
+        long peak;
+        while (leased > (peak = peakLeasedBytes.get()) && !peakLeasedBytes.compareAndSet(peak, leased)) {
+            // 其他线程同时更新了峰值，重新比较
+        }
+        return new Lease(this, buffer, classIndex, direct);
+    }
+
+    /**
+     * @return 当前被租用的缓冲区总字节数
+     */
+    @Override
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    /**
+     * @return 同时被租用的缓冲区总字节数的最高值
+     */
+    @Override
+    public long getPeakLeasedBytes() {
+        return peakLeasedBytes.get();
+    }
+
+    /**
+     * @return 池中空闲缓冲区的总字节数
+     */
+    @Override
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * @return 实际分配新缓冲区的次数（未能从池中复用）
+     */
+    @Override
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * @return 租用的总次数
+     */
+    @Override
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    /**
+     * @return 未归还就被回收的租约数量
+     */
+    @Override
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * @return 便于写入日志的统计摘要
+     */
+    public String describe() {
+        return "缓冲区池：租用 " + getLeaseCount() + " 次，新分配 " + getAllocationCount() + " 次，当前租用 "
+                + getLeasedBytes() + " 字节，峰值 " + getPeakLeasedBytes() + " 字节，空闲 " + getRetainedBytes()
+                + " 字节，泄漏 " + getLeakCount() + " 次";
+    }
+
+    /**
+     * 把缓冲区放回对应的大小等级，空闲总量超过上限时丢弃
+     */
+    private void release(ByteBuffer buffer, int classIndex, boolean direct) {
+        discard(buffer);
+        if (retainedBytes.addAndGet(buffer.capacity()) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        (direct ? directFree : heapFree)[classIndex].offerFirst(buffer);
+    }
+
+    /**
+     * 结束租用但不放回池中，缓冲区交给垃圾回收
+     */
+    private void discard(ByteBuffer buffer) {
+        leasedBytes.addAndGet(-buffer.capacity());
+    }
+
+    private int classIndexFor(int size) {
+        int classSize = size <= minClassSize ? minClassSize : Math.min(maxClassSize, roundUpToPowerOfTwo(size));
+        return Integer.numberOfTrailingZeros(classSize) - Integer.numberOfTrailingZeros(minClassSize);
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        int highest = Integer.highestOneBit(value - 1) << 1;
+        return highest > 0 ? highest : 1 << 30;
+    }
+
+    /**
+     * 一次缓冲区租用。关闭租约即把缓冲区归还到池中；重复关闭是安全的。
+     */
+    public static final class Lease implements Closeable {
+        private final ByteBuffer buffer;
+        private final ReleaseAction releaseAction;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(BufferPool pool, ByteBuffer buffer, int classIndex, boolean direct) {
+            this.buffer = buffer;
+            this.releaseAction = new ReleaseAction(pool, buffer, classIndex, direct, Thread.currentThread().getName());
+            this.cleanable = LEAK_DETECTOR.register(this, releaseAction);
+        }
+
+        /**
+         * @return 租用的缓冲区，关闭租约后不得再使用
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            releaseAction.closed.set(true);
+            cleanable.clean();
+        }
+    }
+
+    /**
+     * 归还缓冲区的动作。不能引用 Lease 本身，否则租约永远不会被回收，泄漏也就无法被发现。
+     * 由清理器触发（租约未关闭）时只记录泄漏并丢弃缓冲区。
+     */
+    private static final class ReleaseAction implements Runnable {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final int classIndex;
+        private final boolean direct;
+        // 申请缓冲区的线程，泄漏时用于定位
+        private final String ownerThread;
+        // 租约是否被正常关闭
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        ReleaseAction(BufferPool pool, ByteBuffer buffer, int classIndex, boolean direct, String ownerThread) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.classIndex = classIndex;
+            this.direct = direct;
+            this.ownerThread = ownerThread;
+        }
+
+        @Override
+        public void run() {
+            if (!closed.get()) {
+                pool.leakCount.incrementAndGet();
+                AuditLog.info("缓冲区泄漏：线程 " + ownerThread + " 租用的 " + buffer.capacity() + " 字节"
+                        + (direct ? "直接" : "堆") + "缓冲区未归还，已丢弃，不再放回池中");
+                pool.discard(buffer);
+                return;
+            }
+            pool.release(buffer, classIndex, direct);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * 缓冲区池的JMX管理接口（只读统计），注册名为 ftpserver:type=BufferPool。
+ */
+public interface BufferPoolMBean {
+    /**
+     * @return 当前被租用的缓冲区总字节数
+     */
+    long getLeasedBytes();
+
+    /**
+     * @return 同时被租用的缓冲区总字节数的最高值
+     */
+    long getPeakLeasedBytes();
+
+    /**
+     * @return 池中空闲缓冲区的总字节数
+     */
+    long getRetainedBytes();
+
+    /**
+     * @return 实际分配新缓冲区的次数
+     */
+    long getAllocationCount();
+
+    /**
+     * @return 租用的总次数
+     */
+    long getLeaseCount();
+
+    /**
+     * @return 未归还就被回收的租约数量
+     */
+    long getLeakCount();
+}
@@ -0,0 +1,504 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * 服务器端的文件校验和计算（HASH / XCRC / XMD5 / XSHA1 / XSHA256 / XSHA512）。
+ * CRC32和CRC32C可以分块计算后合并，大文件按块并行计算；MD5和SHA系列只能顺序计算，
+ * 使用预读读取器让磁盘读取与计算重叠。
+ * 结果按路径缓存，并以文件大小和修改时间校验，文件未变时重复校验不再读取文件；
+ * 上传时可以一边写入一边计算，上传完成后直接写入缓存。
+ */
+public final class ChecksumService {
+    // 支持的算法，按FEAT中列出的顺序
+    private static final String[] ALGORITHMS = {"SHA-256", "SHA-512", "SHA-1", "MD5", "CRC32", "CRC32C"};
+    // CRC32和CRC32C（反射形式）的生成多项式
+    private static final int CRC32_POLYNOMIAL = 0xEDB88320;
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+    // 全局唯一的校验和服务，必须在上面的常量之后初始化
+    private static final ChecksumService INSTANCE = new ChecksumService();
+
+    // 默认算法（HASH命令未通过OPTS HASH选择算法时使用）
+    private final String defaultAlgorithm;
+    // 上传时顺带计算的算法
+    private final String[] uploadAlgorithms;
+    // 并行计算CRC时每块的大小，小于该大小的文件直接顺序计算
+    private final long chunkSize;
+    // 最多缓存的文件数量，超过后整体清空
+    private final int maxEntries;
+    // 并行计算CRC的线程池
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 构造函数
+     */
+    private ChecksumService() {
+        ServerConfig config = ServerConfig.getInstance();
+        String configuredDefault = canonicalName(config.getString("checksum.default.algorithm", "SHA-256"));
+        this.defaultAlgorithm = configuredDefault != null ? configuredDefault : "SHA-256";
+        List<String> upload = new ArrayList<>();
+        for (String name : config.getString("checksum.upload.algorithms", "SHA-256").split(",")) {
+            String algorithm = canonicalName(name);
+            if (algorithm != null && !upload.contains(algorithm)) {
+                upload.add(algorithm);
+            }
+        }
+        this.uploadAlgorithms = upload.toArray(new String[0]);
+        this.chunkSize = Math.max(1024 * 1024, config.getLong("checksum.chunk.size", 8L * 1024 * 1024));
+        this.maxEntries = Math.max(1, config.getInt("checksum.cache.max.entries", 10000));
+        int threads = config.getInt("checksum.parallel.threads", Runtime.getRuntime().availableProcessors());
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "ftp-checksum");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 获取全局校验和服务
+     * @return 校验和服务
+     */
+    public static ChecksumService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 默认算法
+     */
+    public String getDefaultAlgorithm() {
+        return defaultAlgorithm;
+    }
+
+    /**
+     * @return 支持的算法名称
+     */
+    public String[] getAlgorithms() {
+        return ALGORITHMS.clone();
+    }
+
+    /**
+     * 把客户端提供的算法名称转换为标准名称，例如"sha256"转换为"SHA-256"。
+     * @param name 算法名称
+     * @return 标准名称，不支持的算法返回null
+     */
+    public static String canonicalName(String name) {
+        String compact = name.trim().toUpperCase().replace("-", "");
+        for (String algorithm : ALGORITHMS) {
+            if (algorithm.replace("-", "").equals(compact)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 计算文件的校验和，文件大小和修改时间未变时直接返回缓存结果。
+     * @param path 文件路径
+     * @param algorithm 标准算法名称
+     * @return 小写十六进制形式的校验和，文件不存在时返回null
+     * @throws IOException 如果读取文件失败
+     */
+    public String checksum(Path path, String algorithm) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        Entry entry = currentEntry(path, attributes);
+        String cached = entry.digests.get(algorithm);
+        if (cached != null) {
+            return cached;
+        }
+
+        String digest;
+        if (algorithm.startsWith("CRC")) {
+            digest = toHex(computeCrc(path, attributes.size(), algorithm));
+        } else {
+            digest = computeDigest(path, algorithm);
+        }
+        // 计算期间文件被修改时不缓存结果
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() == entry.size && after.lastModifiedTime().equals(entry.lastModified)) {
+            entry.digests.put(algorithm, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * 计算文件中一段数据的校验和，用于附带起止位置的XCRC等命令。结果不缓存。
+     * @param path 文件路径
+     * @param algorithm 标准算法名称
+     * @param start 起始位置（包含）
+     * @param end 结束位置（不包含），调用方保证不超过文件大小
+     * @return 小写十六进制形式的校验和，文件不存在时返回null
+     * @throws IOException 如果读取文件失败
+     */
+    public String checksumOfRange(Path path, String algorithm, long start, long end) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        if (algorithm.startsWith("CRC")) {
+            return toHex(crcOfRange(path, start, end - start, algorithm));
+        }
+        return digestOfRange(path, start, end - start, algorithm);
+    }
+
+    /**
+     * 为一次上传创建需要顺带计算的摘要集合。
+     * @return 摘要集合，未配置上传时计算的算法时返回null
+     */
+    public DigestSet newUploadDigests() {
+        if (uploadAlgorithms.length == 0) {
+            return null;
+        }
+        return new DigestSet(uploadAlgorithms);
+    }
+
+    /**
+     * 上传完成后把顺带计算的摘要写入缓存。
+     * @param path 上传的文件
+     * @param digests 上传过程中计算的摘要，可以为null
+     * @throws IOException 如果读取文件属性失败
+     */
+    public void record(Path path, DigestSet digests) throws IOException {
+        if (digests == null) {
+            return;
+        }
+        // 文件内容已被替换，修改时间精度较低时旧条目可能仍然"一致"，因此总是丢弃
+        entries.remove(path);
+        Entry entry = currentEntry(path, Files.readAttributes(path, BasicFileAttributes.class));
+        for (int i = 0; i < digests.algorithms.length; i++) {
+            entry.digests.put(digests.algorithms[i], digests.finish(i));
+        }
+    }
+
+    /**
+     * 上传完成后记录一个已知的摘要（例如去重存储在上传时计算的内容摘要）。
+     * @param path 文件路径
+     * @param algorithm 算法名称，不是支持的算法时忽略
+     * @param digest 十六进制形式的摘要
+     * @throws IOException 如果读取文件属性失败
+     */
+    public void record(Path path, String algorithm, String digest) throws IOException {
+        String canonical = canonicalName(algorithm);
+        if (canonical != null && digest != null) {
+            entries.remove(path);
+            currentEntry(path, Files.readAttributes(path, BasicFileAttributes.class)).digests.put(canonical, digest.toLowerCase());
+        }
+    }
+
+    /**
+     * 取得与文件当前大小和修改时间一致的缓存条目，不一致时替换为新的空条目
+     */
+    private Entry currentEntry(Path path, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        FileTime lastModified = attributes.lastModifiedTime();
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size != size || !entry.lastModified.equals(lastModified)) {
+            if (entries.size() >= maxEntries) {
+                entries.clear();
+            }
+            entry = new Entry(size, lastModified);
+            entries.put(path, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 顺序计算MD5或SHA摘要，读取与计算通过预读窗口重叠
+     */
+    private String computeDigest(Path path, String algorithm) throws IOException {
+        MessageDigest messageDigest = newMessageDigest(algorithm);
+        try (ReadAheadFileReader reader = new ReadAheadFileReader(path, 1024 * 1024, 4)) {
+            ByteBuffer window;
+            while ((window = reader.next()) != null) {
+                messageDigest.update(window);
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * 把文件分块并行计算CRC，再按顺序合并各块的结果
+     */
+    private long computeCrc(Path path, long size, String algorithm) throws IOException {
+        int polynomial = "CRC32C".equals(algorithm) ? CRC32C_POLYNOMIAL : CRC32_POLYNOMIAL;
+        if (size <= chunkSize) {
+            return crcOfRange(path, 0, size, algorithm);
+        }
+
+        List<Future<Long>> parts = new ArrayList<>();
+        for (long start = 0; start < size; start += chunkSize) {
+            long from = start;
+            long length = Math.min(chunkSize, size - start);
+            parts.add(workers.submit(() -> crcOfRange(path, from, length, algorithm)));
+        }
+        long crc = 0;
+        long start = 0;
+        try {
+            for (Future<Long> part : parts) {
+                long length = Math.min(chunkSize, size - start);
+                long partCrc = part.get();
+                crc = start == 0 ? partCrc : combineCrc(crc, partCrc, length, polynomial);
+                start += length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待校验和计算时被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("计算校验和失败", e.getCause());
+        } finally {
+            for (Future<Long> part : parts) {
+                part.cancel(true);
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * 计算文件中一段数据的CRC
+     */
+    private static long crcOfRange(Path path, long start, long length, String algorithm) throws IOException {
+        Checksum checksum = "CRC32C".equals(algorithm) ? new CRC32C() : new CRC32();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             BufferPool.Lease lease = BufferPool.getInstance().acquire(1024 * 1024, true)) {
+            ByteBuffer buffer = lease.buffer();
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    // 文件在计算过程中被截断
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += read;
+            }
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * 计算文件中一段数据的MD5或SHA摘要
+     */
+    private static String digestOfRange(Path path, long start, long length, String algorithm) throws IOException {
+        MessageDigest messageDigest = newMessageDigest(algorithm);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             BufferPool.Lease lease = BufferPool.getInstance().acquire(1024 * 1024, true)) {
+            ByteBuffer buffer = lease.buffer();
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    // 文件在计算过程中被截断
+                    break;
+                }
+                buffer.flip();
+                messageDigest.update(buffer);
+                position += read;
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * 合并两段相邻数据的CRC（与zlib的crc32_combine相同的GF(2)矩阵算法）：
+     * 已知A的CRC、B的CRC和B的长度，求A与B连接后的CRC。
+     * @param crc1 前一段的CRC
+     * @param crc2 后一段的CRC
+     * @param length2 后一段的字节数
+     * @param polynomial 反射形式的生成多项式
+     * @return 连接后的CRC
+     */
+    static long combineCrc(long crc1, long crc2, long length2, int polynomial) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // 奇数次幂矩阵：对应一个零比特的运算
+        odd[0] = polynomial & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // 平方两次得到四个零比特的运算，下面每次平方对应的零的个数翻倍
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        long crc = crc1;
+        long remaining = length2;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            remaining >>>= 1;
+            if (remaining == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            remaining >>>= 1;
+        } while (remaining != 0);
+        return crc ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private static MessageDigest newMessageDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("不支持的摘要算法：" + algorithm, e);
+        }
+    }
+
+    private static String toHex(long crc) {
+        return String.format("%08x", crc);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 上传过程中顺带计算的一组摘要
+     */
+    public static final class DigestSet {
+        private final String[] algorithms;
+        // 每个算法对应一个 Checksum 或 MessageDigest
+        private final Object[] states;
+
+        private DigestSet(String[] algorithms) {
+            this.algorithms = algorithms;
+            this.states = new Object[algorithms.length];
+            for (int i = 0; i < algorithms.length; i++) {
+                if ("CRC32".equals(algorithms[i])) {
+                    states[i] = new CRC32();
+                } else if ("CRC32C".equals(algorithms[i])) {
+                    states[i] = new CRC32C();
+                } else {
+                    try {
+                        states[i] = MessageDigest.getInstance(algorithms[i]);
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 用缓冲区中 position 到 limit 之间的数据更新所有摘要，不改变缓冲区的位置
+         * @param data 刚写入文件的数据
+         */
+        public void update(ByteBuffer data) {
+            for (Object state : states) {
+                if (state instanceof Checksum) {
+                    ((Checksum) state).update(data.duplicate());
+                } else {
+                    ((MessageDigest) state).update(data.duplicate());
+                }
+            }
+        }
+
+        /**
+         * 用数组中的一段数据更新所有摘要
+         * @param data 数据
+         * @param offset 起始位置
+         * @param length 长度
+         */
+        public void update(byte[] data, int offset, int length) {
+            for (Object state : states) {
+                if (state instanceof Checksum) {
+                    ((Checksum) state).update(data, offset, length);
+                } else {
+                    ((MessageDigest) state).update(data, offset, length);
+                }
+            }
+        }
+
+        private String finish(int index) {
+            Object state = states[index];
+            if (state instanceof Checksum) {
+                return toHex(((Checksum) state).getValue());
+            }
+            return toHex(((MessageDigest) state).digest());
+        }
+    }
+
+    /**
+     * 一个文件的缓存条目，大小或修改时间变化后整体失效
+     */
+    private static final class Entry {
+        final long size;
+        final FileTime lastModified;
+        final Map<String, String> digests = new ConcurrentHashMap<>();
+
+        Entry(long size, FileTime lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * 按内容寻址的去重存储。
+ * 上传的数据一边写入临时文件一边计算摘要，完成后以摘要为文件名存入 objects 目录，
+ * 相同内容只保存一份；用户可见的路径是指向该对象的硬链接，因此下载时读取的就是共享对象，
+ * 同一份内容在页缓存中也只占一份。
+ */
+public class ContentStore {
+    // 全局唯一的存储实例
+    private static final ContentStore INSTANCE = new ContentStore();
+
+    // 是否启用去重存储
+    private final boolean enabled;
+    // 存储根目录
+    private final Path storeRoot;
+    // 内容对象目录
+    private final Path objectDirectory;
+    // 上传过程中的临时文件目录
+    private final Path stagingDirectory;
+    // 摘要算法
+    private final String digestAlgorithm;
+    // 存储目录所在文件系统是否支持硬链接，启动时检测
+    private volatile boolean linksSupported = true;
+    // 存储目录所在的设备号，非Unix文件系统为null
+    private volatile Object storeDevice;
+
+    /**
+     * 构造函数
+     */
+    private ContentStore() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.enabled = config.getBoolean("storage.dedup", false);
+        this.storeRoot = Paths.get(config.getString("storage.blob.dir",
+                Paths.get(System.getProperty("user.dir"), ".blobstore").toString())).toAbsolutePath().normalize();
+        this.objectDirectory = storeRoot.resolve("objects");
+        this.stagingDirectory = storeRoot.resolve("staging");
+        this.digestAlgorithm = config.getString("storage.dedup.algorithm", "SHA-256");
+    }
+
+    /**
+     * 获取全局存储实例
+     * @return 去重存储
+     */
+    public static ContentStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 是否启用了去重存储
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 判断上传到指定路径的文件能否存入去重存储：目标必须与存储目录位于同一文件系统，并且文件系统支持硬链接。
+     * 不满足时文件按普通方式保存，否则每个文件都要复制一份，比不去重占用更多空间。
+     * @param targetPath 用户可见的目标文件路径
+     * @return 如果应当存入去重存储则返回true
+     */
+    public boolean isEnabledFor(Path targetPath) {
+        if (!enabled || !linksSupported) {
+            return false;
+        }
+        return onStoreFileSystem(targetPath.toAbsolutePath().getParent());
+    }
+
+    /**
+     * 启动时检测存储目录能否创建硬链接，并记录存储目录所在的设备；
+     * 与存储目录不在同一文件系统的根目录中的上传不会去重，在日志中提示。
+     * @param roots 配置的用户根目录
+     */
+    public void checkLinkSupport(Collection<Path> roots) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Files.createDirectories(stagingDirectory);
+            Path probe = stagingDirectory.resolve(UUID.randomUUID() + ".probe");
+            Path probeLink = stagingDirectory.resolve(UUID.randomUUID() + ".probe");
+            Files.createFile(probe);
+            try {
+                Files.createLink(probeLink, probe);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                linksSupported = false;
+                AuditLog.info("存储目录不支持硬链接，去重存储不生效：" + storeRoot);
+                return;
+            } finally {
+                Files.deleteIfExists(probeLink);
+                Files.deleteIfExists(probe);
+            }
+            storeDevice = device(storeRoot);
+        } catch (IOException e) {
+            linksSupported = false;
+            AuditLog.error("检测存储目录失败，去重存储不生效：" + storeRoot, e);
+            return;
+        }
+        for (Path root : roots) {
+            if (Files.isDirectory(root) && !onStoreFileSystem(root)) {
+                AuditLog.info("根目录与存储目录不在同一文件系统，其中的上传不会去重：" + root);
+            }
+        }
+    }
+
+    private boolean onStoreFileSystem(Path directory) {
+        try {
+            Object device = device(directory);
+            if (device != null && storeDevice != null) {
+                return device.equals(storeDevice);
+            }
+            return Files.getFileStore(directory).equals(Files.getFileStore(storeRoot));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Object device(Path path) throws IOException {
+        try {
+            return Files.getAttribute(path, "unix:dev");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 存储目录的位置（配置的路径以及解析符号链接后的真实路径），文件列表据此按名称隐藏存储目录
+     * @return 存储目录的路径，未启用去重存储时为空
+     */
+    public List<Path> getStoreRoots() {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+        Path real = realStoreRoot();
+        return real.equals(storeRoot) ? Collections.singletonList(storeRoot) : Arrays.asList(storeRoot, real);
+    }
+
+    /**
+     * 判断路径是否位于存储目录内部。存储目录不应出现在文件列表中，也不允许客户端直接访问：
+     * 对共享对象的任何写入或删除都会影响所有链接到它的文件。
+     * 除了路径本身，还检查其最近的已存在上级目录解析符号链接后的真实路径，指向存储目录的链接同样被拒绝。
+     * @param path 需要判断的路径
+     * @return 如果路径属于存储目录则返回true
+     */
+    public boolean isInternalPath(Path path) {
+        if (!enabled) {
+            return false;
+        }
+        Path normalized = path.toAbsolutePath().normalize();
+        if (normalized.startsWith(storeRoot)) {
+            return true;
+        }
+        Path existing = normalized;
+        while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return false;
+        }
+        try {
+            return existing.toRealPath().startsWith(realStoreRoot());
+        } catch (IOException e) {
+            // 无法解析的路径（例如悬空的符号链接）不会指向存储目录中的对象
+            return false;
+        }
+    }
+
+    /**
+     * 存储目录解析符号链接后的真实路径，目录尚不存在时使用配置的路径
+     */
+    private Path realStoreRoot() {
+        try {
+            return storeRoot.toRealPath();
+        } catch (IOException e) {
+            return storeRoot;
+        }
+    }
+
+    /**
+     * 从输入流读取上传数据，存入内容对象并把目标路径链接到该对象。
+     * 计算出的内容摘要同时登记到校验和缓存，之后的HASH命令无需再读取文件。
+     * @param dataIn 上传数据的输入流
+     * @param targetPath 用户可见的目标文件路径
+     * @param bufferSize 每次从输入流读取的字节数
+     * @return 写入的字节数
+     * @throws IOException 如果读写文件或网络传输时发生IO错误
+     */
+    public long store(InputStream dataIn, Path targetPath, int bufferSize) throws IOException {
+        Files.createDirectories(stagingDirectory);
+        Path stagingFile = stagingDirectory.resolve(UUID.randomUUID() + ".part");
+        UploadCommitter committer = UploadCommitter.getInstance();
+        String digest;
+        long totalBytes = 0;
+        try {
+            MessageDigest messageDigest = newDigest();
+            Path objectPath;
+            boolean newObject;
+            try (BufferPool.Lease lease = BufferPool.getInstance().acquire(bufferSize, false);
+                 FileChannel stagingChannel = FileChannel.open(stagingFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 OutputStream stagingOut = Channels.newOutputStream(stagingChannel)) {
+                byte[] buffer = lease.buffer().array();
+                int bytesRead;
+                while ((bytesRead = dataIn.read(buffer)) != -1) {
+                    totalBytes += bytesRead;
+                    messageDigest.update(buffer, 0, bytesRead);
+                    stagingOut.write(buffer, 0, bytesRead);
+                }
+                digest = toHex(messageDigest.digest());
+                objectPath = objectPathFor(digest);
+                newObject = !Files.exists(objectPath);
+                if (newObject) {
+                    // 只有新内容才需要刷盘，重复内容已经持久化在已有对象中
+                    committer.force(stagingChannel);
+                }
+            }
+
+            boolean created = false;
+            if (newObject) {
+                Files.createDirectories(objectPath.getParent());
+                created = publishObject(stagingFile, objectPath);
+                if (created) {
+                    committer.syncDirectory(objectPath.getParent());
+                }
+            }
+            // 重复内容（或并发上传已先创建了对象）时临时文件在finally中丢弃，直接复用已有对象
+            linkInto(objectPath, stagingFile, created, targetPath);
+            committer.syncDirectory(targetPath.toAbsolutePath().getParent());
+        } finally {
+            Files.deleteIfExists(stagingFile);
+        }
+        ChecksumService.getInstance().record(targetPath, digestAlgorithm, digest);
+        return totalBytes;
+    }
+
+    /**
+     * 以不替换的方式把临时文件发布为内容对象。两个会话同时首次上传相同内容时，
+     * 后完成的一方不能替换已经被其他路径链接的对象，而是直接复用它。
+     * @return 如果对象由本次调用创建则返回true，对象已存在时返回false
+     */
+    private boolean publishObject(Path stagingFile, Path objectPath) throws IOException {
+        try {
+            // 硬链接在目标已存在时失败，不会覆盖已有对象
+            Files.createLink(objectPath, stagingFile);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // 不支持硬链接的文件系统：不带REPLACE_EXISTING的移动在目标已存在时同样失败
+            try {
+                Files.move(stagingFile, objectPath);
+                return true;
+            } catch (FileAlreadyExistsException exists) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 普通（非去重）上传覆盖文件前调用：如果目标是共享对象的硬链接，先断开链接，
+     * 避免原地截断时修改了其他路径共享的内容。
+     * @param targetPath 将要被覆盖的文件路径
+     * @throws IOException 如果删除链接失败
+     */
+    public void detach(Path targetPath) throws IOException {
+        if (Files.exists(targetPath) && linkCount(targetPath) > 1) {
+            DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(targetPath);
+            try {
+                Files.delete(targetPath);
+            } finally {
+                change.commit();
+            }
+        }
+    }
+
+    /**
+     * 删除不再被任何用户路径引用的内容对象和残留的临时文件。
+     * 只在服务器启动时、尚无会话写入的情况下调用。
+     */
+    public void purgeUnreferenced() {
+        if (!enabled || !Files.isDirectory(objectDirectory)) {
+            return;
+        }
+        long purged = 0;
+        try (Stream<Path> objects = Files.walk(objectDirectory)) {
+            for (Path object : (Iterable<Path>) objects.filter(Files::isRegularFile)::iterator) {
+                if (linkCount(object) == 1) {
+                    Files.delete(object);
+                    purged++;
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            AuditLog.error("清理内容对象失败", e);
+        }
+        if (Files.isDirectory(stagingDirectory)) {
+            try (DirectoryStream<Path> staging = Files.newDirectoryStream(stagingDirectory)) {
+                for (Path stale : staging) {
+                    Files.deleteIfExists(stale);
+                }
+            } catch (IOException e) {
+                AuditLog.error("清理上传临时文件失败", e);
+            }
+        }
+        AuditLog.info("去重存储清理完成，删除未引用对象 " + purged + " 个");
+    }
+
+    /**
+     * 让目标路径指向内容对象：先在目标旁边创建硬链接，再原子地替换目标。
+     * 运行中仍然无法创建链接时（例如对象的链接数已达上限），本次上传按普通文件保存（从自己的临时文件复制），
+     * 对象如果由本次上传创建且没有其他路径引用则一并删除，同一份内容不会存两份。
+     */
+    private void linkInto(Path objectPath, Path stagingFile, boolean created, Path targetPath) throws IOException {
+        // 与普通上传使用同样的临时文件名，文件列表中不会出现
+        Path linkPath = UploadCommitter.getInstance().stagingPathFor(targetPath);
+        DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(targetPath);
+        try {
+            try {
+                Files.createLink(linkPath, objectPath);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                AuditLog.error("无法创建硬链接，按普通文件保存：" + targetPath, e);
+                Files.copy(Files.exists(stagingFile) ? stagingFile : objectPath, linkPath);
+                // 本次创建的对象只被临时文件引用（链接数不超过2）时删除；其他上传随后链接它失败时同样会退回复制
+                if (created && linkCount(objectPath) <= 2) {
+                    Files.deleteIfExists(objectPath);
+                }
+            }
+            Files.move(linkPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(linkPath);
+            change.commit();
+        }
+    }
+
+    /**
+     * 内容对象按摘要的前两位分目录存放，避免单个目录下文件过多。
+     */
+    private Path objectPathFor(String digest) {
+        return objectDirectory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("不支持的摘要算法：" + digestAlgorithm, e);
+        }
+    }
+
+    private static int linkCount(Path path) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // 非Unix文件系统无法获取链接数
+            return -1;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
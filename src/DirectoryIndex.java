@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * 按名称排序的目录索引，用于 LIST/NLST 以及分页列表。
+ * 目录第一次被列出时读取一次并排序，之后通过FTP执行的创建、删除和重命名直接增量更新索引；
+ * 每次使用前比较目录的修改时间，服务器之外的修改会触发重新读取。
+ * 修改前后各读取一次目录的修改时间：只有修改前的时间仍与索引记录的一致（期间没有其他修改）时才记录修改后的时间，
+ * 否则索引在下次使用时重建。修改时间有精度限制，同一个时间刻度内的多次修改无法区分：
+ * 读取目录时修改时间距离读取时刻不足一个精度，读取之后的外部修改可能不会改变修改时间，
+ * 这样的索引在修改时间不变的情况下每个精度窗口最多重新读取一次（而不是每次列表都读取），
+ * 窗口过后的那次读取即可确认。服务器自己完成的修改已经增量更新到索引中，不会使索引失去信任。
+ * 分页时按偏移量或"上一页最后一个名称"定位，不必每次都遍历整个目录。
+ */
+public final class DirectoryIndex {
+    // 全局唯一的目录索引
+    private static final DirectoryIndex INSTANCE = new DirectoryIndex();
+
+    // 最多同时保留的目录索引数量，按访问顺序淘汰
+    private final int maxDirectories;
+    // 文件系统修改时间的精度（毫秒）
+    private final long granularityMillis;
+    private final Map<Path, Index> indexes;
+
+    /**
+     * 构造函数
+     */
+    private DirectoryIndex() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.maxDirectories = Math.max(1, config.getInt("listing.index.max.directories", 64));
+        this.granularityMillis = Math.max(0, config.getLong("listing.index.mtime.granularity.ms", 2000));
+        this.indexes = new LinkedHashMap<Path, Index>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Index> eldest) {
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    /**
+     * 获取全局目录索引
+     * @return 目录索引
+     */
+    public static DirectoryIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 判断路径是否应出现在文件列表中：去重存储目录、上传中的临时文件和服务器自身的文件（例如日志目录）不显示。
+     * 逐个判断同一目录中的大量条目时，应先取得 {@link #hiddenNames(Path)} 再调用 {@link #isListed(Path, Set)}。
+     * @param path 目录中的条目
+     * @return 如果应当列出则返回true
+     */
+    public static boolean isListed(Path path) {
+        Path parent = path.toAbsolutePath().normalize().getParent();
+        return parent == null || isListed(path, hiddenNames(parent));
+    }
+
+    /**
+     * 判断目录中的条目是否应当列出，只比较名称，不访问文件系统
+     * @param entry 目录中的条目
+     * @param hiddenNames 所在目录的 {@link #hiddenNames(Path)}
+     * @return 如果应当列出则返回true
+     */
+    public static boolean isListed(Path entry, Set<String> hiddenNames) {
+        Path name = entry.getFileName();
+        return name != null && !hiddenNames.contains(name.toString()) && !UploadCommitter.isStagingFile(entry);
+    }
+
+    /**
+     * 取得目录中需要隐藏的条目名称：直接位于该目录下的去重存储目录和服务器自身的文件。
+     * 每个目录只解析一次真实路径，之后同一目录的条目只需比较名称。
+     * @param directory 目录
+     * @return 需要隐藏的名称，通常为空
+     */
+    public static Set<String> hiddenNames(Path directory) {
+        Path normalized = directory.toAbsolutePath().normalize();
+        Path real;
+        try {
+            real = normalized.toRealPath();
+        } catch (IOException e) {
+            real = normalized;
+        }
+        Set<String> names = new HashSet<>();
+        List<Path> hidden = new ArrayList<>(ContentStore.getInstance().getStoreRoots());
+        hidden.addAll(PathResolver.getServerFiles());
+        for (Path path : hidden) {
+            Path parent = path.getParent();
+            if (parent != null && (parent.equals(normalized) || parent.equals(real))) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 读取目录中的一页名称。
+     * @param directory 目录
+     * @param filter 名称过滤条件（例如通配符），为null表示不过滤
+     * @param offset 跳过前多少个（过滤后的）名称，after不为null时忽略
+     * @param after 上一页的最后一个名称，从其后开始；为null时使用offset
+     * @param limit 最多返回的名称数量，小于等于0表示不限
+     * @return 按名称排序的一页名称
+     * @throws IOException 如果读取目录失败
+     */
+    public Page page(Path directory, Predicate<String> filter, int offset, String after, int limit) throws IOException {
+        Index index = indexFor(directory);
+        synchronized (index) {
+            List<String> names = index.names;
+            int start;
+            if (after != null) {
+                int position = Collections.binarySearch(names, after);
+                start = position >= 0 ? position + 1 : -position - 1;
+            } else if (filter == null) {
+                start = Math.max(0, Math.min(offset, names.size()));
+            } else {
+                start = 0;
+            }
+            int wanted = limit > 0 ? limit : Integer.MAX_VALUE;
+
+            if (filter == null) {
+                // 不过滤时直接按下标截取，与目录大小无关
+                int end = (int) Math.min((long) start + wanted, names.size());
+                return new Page(new ArrayList<>(names.subList(start, end)), end < names.size());
+            }
+            List<String> matched = new ArrayList<>();
+            int skip = after == null ? Math.max(0, offset) : 0;
+            int position = start;
+            while (position < names.size() && matched.size() < wanted) {
+                String name = names.get(position++);
+                if (filter.test(name)) {
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        matched.add(name);
+                    }
+                }
+            }
+            return new Page(matched, position < names.size());
+        }
+    }
+
+    /**
+     * 在创建、删除或重命名目录中的条目之前调用，记录受影响目录当前的修改时间；
+     * 修改完成后（无论成功与否）调用返回值的 commit() 更新索引。
+     * @param paths 将被修改的条目，例如重命名的源和目标
+     * @return 本次修改
+     */
+    public Change beginChange(Path... paths) {
+        FileTime[] before = new FileTime[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            Path parent = paths[i].getParent();
+            boolean indexed;
+            synchronized (indexes) {
+                indexed = parent != null && indexes.containsKey(parent);
+            }
+            // 没有索引的目录不必读取，提交时如果已经建立了索引则按外部修改处理
+            before[i] = indexed ? lastModified(parent) : null;
+        }
+        return new Change(paths, before);
+    }
+
+    /**
+     * 取得目录的索引，不存在或目录已被外部修改时重新读取
+     */
+    private Index indexFor(Path directory) throws IOException {
+        Index index;
+        synchronized (indexes) {
+            index = indexes.get(directory);
+            if (index == null) {
+                index = new Index();
+                indexes.put(directory, index);
+            }
+        }
+        synchronized (index) {
+            long readAt = System.currentTimeMillis();
+            FileTime current = lastModified(directory);
+            if (current == null) {
+                throw new NoSuchFileException(directory.toString());
+            }
+            boolean changed = !current.equals(index.lastModified);
+            // 修改时间未变，但上次读取时尚未稳定：每个精度窗口最多重新读取一次
+            boolean recheck = !changed && index.unsettled && readAt - index.verifiedAt >= granularityMillis;
+            if (changed || recheck) {
+                Set<String> hidden = hiddenNames(directory);
+                List<String> names = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (isListed(entry, hidden)) {
+                            names.add(entry.getFileName().toString());
+                        }
+                    }
+                }
+                Collections.sort(names);
+                index.names = names;
+                index.lastModified = current;
+                index.verifiedAt = readAt;
+                index.unsettled = !settled(current, readAt);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 判断在某一时刻读取的目录内容是否可信：修改时间必须早于读取时刻至少一个精度，
+     * 否则同一时间刻度内、读取之后发生的修改不会改变修改时间，无法被发现
+     */
+    private boolean settled(FileTime lastModified, long verifiedAt) {
+        return lastModified.toMillis() + granularityMillis < verifiedAt;
+    }
+
+    private static FileTime lastModified(Path directory) {
+        try {
+            return Files.getLastModifiedTime(directory);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 一页名称
+     */
+    public static final class Page {
+        private final List<String> names;
+        private final boolean more;
+
+        Page(List<String> names, boolean more) {
+            this.names = names;
+            this.more = more;
+        }
+
+        /**
+         * @return 本页的名称，按名称排序
+         */
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @return 本页之后是否还可能有名称（过滤时为"目录尚未扫描完"）
+         */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    /**
+     * 一次对目录条目的修改，由 beginChange 创建
+     */
+    public final class Change {
+        private final Path[] paths;
+        // 修改前各条目所在目录的修改时间，目录没有索引时为null
+        private final FileTime[] before;
+
+        private Change(Path[] paths, FileTime[] before) {
+            this.paths = paths;
+            this.before = before;
+        }
+
+        /**
+         * 修改完成后调用：丢弃被修改路径之下（被删除或重命名的目录）的索引，增量更新所在目录的索引。
+         * 修改前的时间与索引记录的一致时记录修改后的时间，索引保持原来的可信状态；
+         * 否则期间发生了其他修改，索引在下次使用时重建。
+         */
+        public void commit() {
+            synchronized (indexes) {
+                for (Path path : paths) {
+                    indexes.keySet().removeIf(indexed -> indexed.startsWith(path));
+                }
+            }
+            for (int i = 0; i < paths.length; i++) {
+                Path parent = paths[i].getParent();
+                Index index;
+                synchronized (indexes) {
+                    index = parent == null ? null : indexes.get(parent);
+                }
+                if (index == null) {
+                    continue;
+                }
+                synchronized (index) {
+                    update(index, paths[i]);
+                    // 同一目录内的重命名涉及两个条目，修改前的时间只与第一次提交时的索引比较
+                    boolean first = true;
+                    for (int j = 0; j < i; j++) {
+                        if (parent.equals(paths[j].getParent())) {
+                            first = false;
+                        }
+                    }
+                    if (first) {
+                        long readAt = System.currentTimeMillis();
+                        if (before[i] != null && before[i].equals(index.lastModified)) {
+                            // 这次修改本身已经更新到索引中，不需要为它重新读取目录
+                            index.lastModified = lastModified(parent);
+                            index.verifiedAt = readAt;
+                        } else {
+                            index.lastModified = null;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void update(Index index, Path path) {
+            String name = path.getFileName().toString();
+            int position = Collections.binarySearch(index.names, name);
+            boolean present = Files.exists(path, LinkOption.NOFOLLOW_LINKS) && isListed(path);
+            if (present && position < 0) {
+                index.names.add(-position - 1, name);
+            } else if (!present && position >= 0) {
+                index.names.remove(position);
+            }
+        }
+    }
+
+    /**
+     * 一个目录的索引，由自身加锁保护
+     */
+    private static final class Index {
+        // 排序后的名称
+        List<String> names = new ArrayList<>();
+        // 建立或最后一次更新索引时目录的修改时间，为null时下次使用必须重建
+        FileTime lastModified;
+        // 最后一次读取目录或提交修改的时刻（毫秒）
+        long verifiedAt;
+        // 读取目录时修改时间距离读取时刻不足一个精度，读取之后的外部修改可能未被发现，需要再核对一次
+        boolean unsettled;
+    }
+}
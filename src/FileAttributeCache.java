@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局的文件属性缓存。
+ * SIZE、MDTM、CWD等命令只需要文件是否存在、类型、大小和修改时间，一次 readAttributes 即可全部取得；
+ * 结果按路径缓存一小段时间，镜像类客户端的连续查询因此几乎不再产生系统调用。
+ * 通过FTP执行的修改命令会主动失效相关条目，服务器之外的修改最多在TTL之后可见。
+ */
+public final class FileAttributeCache {
+    // 全局唯一的缓存实例
+    private static final FileAttributeCache INSTANCE = new FileAttributeCache();
+
+    // 缓存条目的有效期，0表示不缓存
+    private final long ttlNanos;
+    // 缓存条目上限，超过后整体清空
+    private final int maxEntries;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 构造函数
+     */
+    private FileAttributeCache() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("path.cache.ttl.ms", 1000));
+        this.maxEntries = Math.max(1, config.getInt("path.cache.max.entries", 100000));
+    }
+
+    /**
+     * 获取全局缓存实例
+     * @return 文件属性缓存
+     */
+    public static FileAttributeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 读取文件属性，优先使用未过期的缓存结果。
+     * @param path 已规范化的绝对路径
+     * @return 文件属性，文件不存在时返回null
+     * @throws IOException 如果读取属性时发生除文件不存在以外的IO错误
+     */
+    public BasicFileAttributes get(Path path) throws IOException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(path);
+        if (entry != null && now - entry.loadedAt < ttlNanos) {
+            return entry.attributes;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (ttlNanos > 0) {
+            if (entries.size() >= maxEntries) {
+                entries.clear();
+            }
+            entries.put(path, new Entry(attributes, now));
+        }
+        return attributes;
+    }
+
+    /**
+     * 文件被创建、写入或删除后调用，失效该文件及其所在目录的缓存。
+     * @param path 被修改的路径
+     */
+    public void invalidate(Path path) {
+        entries.remove(path);
+        if (path.getParent() != null) {
+            entries.remove(path.getParent());
+        }
+    }
+
+    /**
+     * 目录被删除或重命名后调用，失效该目录下所有路径的缓存。
+     * @param path 被修改的目录
+     */
+    public void invalidateTree(Path path) {
+        entries.keySet().removeIf(cached -> cached.startsWith(path));
+        invalidate(path);
+    }
+
+    /**
+     * 缓存条目
+     */
+    private static final class Entry {
+        final BasicFileAttributes attributes;
+        final long loadedAt;
+
+        Entry(BasicFileAttributes attributes, long loadedAt) {
+            this.attributes = attributes;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
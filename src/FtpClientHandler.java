@@ -3,59 +3,106 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
+import java.util.Base64;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class FtpClientHandler implements Runnable {
-    // 用于控制连接的Socket
-    private Socket controlSocket;
+    // 会话状态：等待命令
+    private static final int STATE_IDLE = 0;
+    // 会话状态：正在执行命令（包括数据传输）
+    private static final int STATE_BUSY = 1;
+    // 会话状态：已关闭
+    private static final int STATE_CLOSED = 2;
+    // XCRC等命令在文件名后附带的起止位置："名称 起始 [结束]"
+    private static final Pattern CHECKSUM_RANGE_SUFFIX = Pattern.compile("^(.*?)\\s+(\\d+(?:\\s+\\d+)?)$");
+    private static final Pattern CHECKSUM_RANGE = Pattern.compile("\\d+(?:\\s+\\d+)?");
+
+    // 用于控制连接的Socket，AUTH TLS后替换为加密的Socket；执行驱逐的线程也会关闭它
+    private volatile Socket controlSocket;
     // 从控制连接读取客户端命令的阅读器
     private BufferedReader reader;
-    // 向控制连接发送服务器响应的写入器
-    private PrintWriter writer;
+    // 向控制连接发送服务器响应的写入器，AUTH TLS后替换；执行驱逐的线程也会通过它发送421
+    private volatile PrintWriter writer;
 
     // 当前登录的用户名
     private String username;
     // 用户是否已认证
     private boolean isAuthenticated;
-    // 当前客户端的虚拟工作目录
+    // 当前客户端的工作目录（服务器上的绝对路径，始终位于用户根目录内）
     private Path currentDirectory;
+    // 把客户端路径限制在用户根目录内的解析器
+    private PathResolver pathResolver;
     // 用于暂存RNFR命令的源路径
     private Path renameFromPath;
+    // 客户端地址，用于审计日志
+    private String remoteHost;
 
 
+    // 控制连接是否已通过AUTH TLS加密
+    private boolean controlSecured;
+    // 是否已执行PBSZ命令（RFC 4217要求PROT之前先执行PBSZ）
+    private boolean protectionBufferSizeSet;
+    // HASH命令使用的算法（OPTS HASH）
+    private String hashAlgorithm = ChecksumService.getInstance().getDefaultAlgorithm();
+
     private UserAuthenticator userAuthenticator;
     private FtpDataConnectionManager dataConnectionManager;
+    // 所属的服务器，用于查询是否正在平滑关闭
+    private FtpServer server;
+    // 会话状态，由会话线程和执行关闭的线程共同修改
+    private final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+    // 会话在登记表中的记录（当前命令、收发字节数、速率），供 SITE WHO、JMX和平滑关闭使用
+    private final SessionRegistry.Session session;
 
     /**
      * 构造函数
      * @param clientSocket 代表该客户端的控制连接
+     * @param server 所属的服务器
      */
-    public FtpClientHandler(Socket clientSocket) {
+    public FtpClientHandler(Socket clientSocket, FtpServer server) {
         this.controlSocket = clientSocket;
+        this.server = server;
         this.isAuthenticated = false;
-        // 初始工作目录
-        this.currentDirectory = Paths.get(System.getProperty("user.dir"));
+        // 初始工作目录，登录后切换到该用户的根目录
+        this.pathResolver = new PathResolver(PathResolver.rootFor(null));
+        this.currentDirectory = pathResolver.getRoot();
         this.renameFromPath = null;
+        this.remoteHost = clientSocket.getInetAddress().getHostAddress();
+        // 在登记表中登记会话，run() 结束时注销
+        this.session = SessionRegistry.getInstance().open(this, remoteHost);
 
         this.userAuthenticator = new UserAuthenticator();
-        this.dataConnectionManager = new FtpDataConnectionManager();
+        this.dataConnectionManager = new FtpDataConnectionManager(clientSocket.getInetAddress(), session);
 
         try {
+            // 控制连接上每条响应都是一个小数据包，关闭Nagle算法，
+            // 避免"150"之后的"226"等待客户端的延迟确认（约40毫秒）
+            controlSocket.setTcpNoDelay(true);
             this.reader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream()));
             this.writer = new PrintWriter(controlSocket.getOutputStream(), true);
         } catch (IOException e) {
-            e.printStackTrace();
+            AuditLog.error("初始化控制连接失败：" + remoteHost, e);
             try {
                 if (controlSocket != null && !controlSocket.isClosed()) {
                     controlSocket.close();
                 }
             } catch (IOException ex) {
-                ex.printStackTrace();
+                AuditLog.error("关闭控制连接失败：" + remoteHost, ex);
             }
         }
     }
@@ -63,20 +110,97 @@ public class FtpClientHandler implements Runnable {
     @Override
     public void run() {
         try {
+            if (reader == null) {
+                // 构造时初始化控制连接失败
+                return;
+            }
+            if (server.isDraining()) {
+                // 关闭开始前已被接受、但尚未开始处理的连接
+                sendReply(421, "服务正在关闭，请稍后重新连接。");
+                return;
+            }
             // 发送欢迎消息
             sendReply(220, "Service ready for new user.");
 
             String line;
             // 持续从客户端读取命令，直到连接断开或发生错误
             while ((line = reader.readLine()) != null) {
+                if (!state.compareAndSet(STATE_IDLE, STATE_BUSY) || server.isDraining()) {
+                    sendReply(421, "服务正在关闭，请稍后重新连接。");
+                    break;
+                }
                 // 处理接收到的命令
-                processCommand(line);
-                if (controlSocket.isClosed()) {
+                session.commandStarted(line);
+                try {
+                    processCommand(line);
+                } finally {
+                    session.commandFinished();
+                }
+                if (controlSocket.isClosed() || !state.compareAndSet(STATE_BUSY, STATE_IDLE)) {
                     break;
                 }
+                // 命令执行期间服务器开始关闭：当前命令已完成，不再等待下一条命令
+                if (server.isDraining() && closeIfIdle()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 服务器主动关闭连接导致的读取异常无需记录
+            if (!controlSocket.isClosed()) {
+                AuditLog.error("控制连接读取失败：" + remoteHost, e);
+            }
+        } finally {
+            state.set(STATE_CLOSED);
+            dataConnectionManager.closeActiveDataSocket();
+            closeControlSocket();
+            SessionRegistry.getInstance().close(session);
+        }
+    }
+
+    /**
+     * 平滑关闭时由会话登记表调用：如果会话正在等待命令，立即回复421并断开；
+     * 正在执行命令的会话不受影响，它会在命令结束后自行断开。
+     * @return 如果会话已被关闭则返回true
+     */
+    public boolean closeIfIdle() {
+        if (!state.compareAndSet(STATE_IDLE, STATE_CLOSED)) {
+            return false;
+        }
+        sendReply(421, "服务正在关闭，请稍后重新连接。");
+        closeControlSocket();
+        return true;
+    }
+
+    /**
+     * 关闭期限已到时由会话登记表调用，无论会话处于什么状态都强制断开控制连接和数据连接。
+     */
+    public void forceClose() {
+        evict("服务正在关闭，传输已中止。");
+    }
+
+    /**
+     * 无论会话处于什么状态都回复421并断开控制连接和数据连接，正在进行的传输立即中止。
+     * 用于关闭期限已到以及断开慢速客户端，可以从其他线程调用。
+     * @param message 421回复的内容
+     */
+    public void evict(String message) {
+        if (state.getAndSet(STATE_CLOSED) != STATE_CLOSED) {
+            sendReply(421, message);
+        }
+        dataConnectionManager.closeActiveDataSocket();
+        closeControlSocket();
+    }
+
+    /**
+     * 关闭控制连接
+     */
+    private void closeControlSocket() {
+        try {
+            if (!controlSocket.isClosed()) {
+                controlSocket.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            AuditLog.error("关闭控制连接失败：" + remoteHost, e);
         }
     }
 
@@ -104,8 +228,16 @@ public class FtpClientHandler implements Runnable {
                 sendReply(215, "UNIX 类型: L8");
                 break;
             case "FEAT":
-                sendReply(211, "支持的扩展：");
-                sendReply(211, "结束");
+                handleFEAT();
+                break;
+            case "AUTH":
+                handleAUTH(argument);
+                break;
+            case "PBSZ":
+                handlePBSZ(argument);
+                break;
+            case "PROT":
+                handlePROT(argument);
                 break;
             case "OPTS":
                 handleOPTS(argument);
@@ -129,7 +261,10 @@ public class FtpClientHandler implements Runnable {
                 handleEPRT(argument);
                 break;
             case "LIST":
-                handleLIST();
+                handleLIST(argument, true);
+                break;
+            case "NLST":
+                handleLIST(argument, false);
                 break;
             case "RETR":
                 handleRETR(argument);
@@ -160,12 +295,146 @@ public class FtpClientHandler implements Runnable {
             case "MDTM":
                 handleMDTM(argument);
                 break;
+            case "HASH":
+                handleHASH(argument);
+                break;
+            case "XCRC":
+                handleChecksum(argument, "CRC32");
+                break;
+            case "XMD5":
+                handleChecksum(argument, "MD5");
+                break;
+            case "XSHA":
+            case "XSHA1":
+                handleChecksum(argument, "SHA-1");
+                break;
+            case "XSHA256":
+                handleChecksum(argument, "SHA-256");
+                break;
+            case "XSHA512":
+                handleChecksum(argument, "SHA-512");
+                break;
+            case "SITE":
+                handleSITE(argument);
+                break;
             default:
                 sendReply(502, "命令未实现。");
                 break;
         }
     }
 
+    /**
+     * 处理HASH命令，使用OPTS HASH选择的算法计算文件摘要。
+     * 回复格式为"213 算法 起始-结束 摘要 文件名"。
+     * @param filename 要计算摘要的文件名
+     */
+    private void handleHASH(String filename) {
+        Path filePath = resolveChecksumTarget(filename);
+        if (filePath == null) {
+            return;
+        }
+        try {
+            String algorithm = hashAlgorithm;
+            String digest = ChecksumService.getInstance().checksum(filePath, algorithm);
+            BasicFileAttributes attributes = pathResolver.attributes(filePath);
+            if (digest == null || attributes == null) {
+                sendReply(550, "文件未找到或不是一个常规文件。");
+                return;
+            }
+            sendReply(213, algorithm + " 0-" + attributes.size() + " " + digest + " " + filename);
+        } catch (IOException e) {
+            sendReply(550, "计算校验和失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 处理XCRC、XMD5、XSHA1、XSHA256、XSHA512命令，回复"250 摘要"。
+     * 部分客户端会给文件名加引号，或在后面附带起止位置（如"XCRC file 0 100"，结束位置不包含，省略时到文件末尾），
+     * 此时只计算这一段数据。没有引号时，只有完整参数不是已存在的文件，末尾的一到两个数字才视为起止位置，
+     * 名为"backup 2"的文件不会被当作"backup"。
+     * @param argument 文件名及可选的起止位置
+     * @param algorithm 命令对应的算法
+     */
+    private void handleChecksum(String argument, String algorithm) {
+        String filename = argument.trim();
+        String range = "";
+        if (filename.startsWith("\"")) {
+            int closingQuote = filename.indexOf('"', 1);
+            if (closingQuote > 0) {
+                range = filename.substring(closingQuote + 1).trim();
+                filename = filename.substring(1, closingQuote);
+            } else {
+                filename = filename.substring(1);
+            }
+        } else {
+            Matcher matcher = CHECKSUM_RANGE_SUFFIX.matcher(filename);
+            if (matcher.matches()) {
+                Path fullPath = pathResolver.resolve(currentDirectory, filename);
+                if (fullPath == null || !exists(fullPath)) {
+                    filename = matcher.group(1);
+                    range = matcher.group(2);
+                }
+            }
+        }
+        if (!range.isEmpty() && !CHECKSUM_RANGE.matcher(range).matches()) {
+            sendReply(501, "参数或语法错误。");
+            return;
+        }
+        Path filePath = resolveChecksumTarget(filename);
+        if (filePath == null) {
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = pathResolver.attributes(filePath);
+            if (attributes == null || !attributes.isRegularFile()) {
+                sendReply(550, "文件未找到或不是一个常规文件。");
+                return;
+            }
+            long start = 0;
+            long end = attributes.size();
+            if (!range.isEmpty()) {
+                String[] bounds = range.split("\\s+");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1) {
+                    end = Long.parseLong(bounds[1]);
+                }
+            }
+            if (start > end || end > attributes.size()) {
+                sendReply(501, "起止位置超出文件范围（文件大小 " + attributes.size() + " 字节）。");
+                return;
+            }
+            ChecksumService service = ChecksumService.getInstance();
+            // 整个文件的结果可以使用缓存
+            String digest = start == 0 && end == attributes.size()
+                    ? service.checksum(filePath, algorithm)
+                    : service.checksumOfRange(filePath, algorithm, start, end);
+            if (digest == null) {
+                sendReply(550, "文件未找到或不是一个常规文件。");
+                return;
+            }
+            sendReply(250, digest);
+        } catch (NumberFormatException e) {
+            sendReply(501, "参数或语法错误。");
+        } catch (IOException e) {
+            sendReply(550, "计算校验和失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 校验登录状态并解析要计算摘要的文件，失败时已回复错误并返回null
+     */
+    private Path resolveChecksumTarget(String filename) {
+        if (!isAuthenticated) {
+            sendReply(530, "未登录。");
+            return null;
+        }
+        if (filename.isEmpty()) {
+            sendReply(501, "参数或语法错误。");
+            return null;
+        }
+        return resolvePath(filename);
+    }
+
     /**
      * 处理MDTM命令，获取文件的最后修改时间。
      * @param filename 要查询修改时间的文件名
@@ -176,16 +445,20 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path filePath = currentDirectory.resolve(filename).normalize();
+        Path filePath = resolvePath(filename);
+        if (filePath == null) {
+            return;
+        }
 
         try {
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+            BasicFileAttributes attributes = pathResolver.attributes(filePath);
+            if (attributes == null || attributes.isDirectory()) {
                 sendReply(550, "文件未找到或它是一个目录。");
                 return;
             }
             // 获取文件的最后修改时间并格式化
             SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-            String modificationTime = sdf.format(new Date(Files.getLastModifiedTime(filePath).toMillis()));
+            String modificationTime = sdf.format(new Date(attributes.lastModifiedTime().toMillis()));
             sendReply(213, modificationTime);
         } catch (IOException e) {
             sendReply(550, "获取修改时间失败：" + e.getMessage());
@@ -202,14 +475,18 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path filePath = currentDirectory.resolve(filename).normalize();
+        Path filePath = resolvePath(filename);
+        if (filePath == null) {
+            return;
+        }
 
         try {
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+            BasicFileAttributes attributes = pathResolver.attributes(filePath);
+            if (attributes == null || attributes.isDirectory()) {
                 sendReply(550, "文件未找到或它是一个目录。");
                 return;
             }
-            long size = Files.size(filePath);
+            long size = attributes.size();
             sendReply(213, String.valueOf(size));
         } catch (IOException e) {
             sendReply(550, "获取文件大小失败：" + e.getMessage());
@@ -231,11 +508,15 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path destinationPath = currentDirectory.resolve(pathname).normalize();
+        Path destinationPath = resolvePath(pathname);
+        if (destinationPath == null) {
+            this.renameFromPath = null;
+            return;
+        }
 
         try {
             // 检查目标路径的父目录是否存在且可写
-            if (destinationPath.getParent() == null || !Files.exists(destinationPath.getParent()) || !Files.isDirectory(destinationPath.getParent()) || !Files.isWritable(destinationPath.getParent())) {
+            if (!isWritableDirectory(destinationPath.getParent())) {
                 sendReply(550, "权限不足或目标路径无效。");
                 // 清除暂存的路径
                 this.renameFromPath = null;
@@ -243,16 +524,25 @@ public class FtpClientHandler implements Runnable {
             }
 
             // 如果目标文件/目录已存在，重命名操作默认会失败。
-            if (Files.exists(destinationPath)) {
+            if (pathResolver.attributes(destinationPath) != null) {
                 sendReply(550, "目标文件或目录已存在。");
                 this.renameFromPath = null;
                 return;
             }
 
             // 执行重命名操作
-            Files.move(this.renameFromPath, destinationPath, StandardCopyOption.ATOMIC_MOVE);
+            DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(this.renameFromPath, destinationPath);
+            try {
+                Files.move(this.renameFromPath, destinationPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                change.commit();
+            }
+            pathResolver.invalidateTree(this.renameFromPath);
+            pathResolver.invalidate(destinationPath);
+            AuditLog.fileOperation(remoteHost, username, "RNTO", this.renameFromPath + " -> " + destinationPath, true);
             sendReply(250, "请求的文件操作成功，已完成。");
         } catch (IOException e) {
+            AuditLog.fileOperation(remoteHost, username, "RNTO", this.renameFromPath + " -> " + destinationPath, false);
             sendReply(550, "重命名文件或目录失败：" + e.getMessage());
         } finally {
             // 无论成功失败，都清除暂存的路径
@@ -270,9 +560,16 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path sourcePath = currentDirectory.resolve(pathname).normalize();
+        Path sourcePath = resolvePath(pathname);
+        if (sourcePath == null || sourcePath.equals(pathResolver.getRoot())) {
+            if (sourcePath != null) {
+                sendReply(550, "不能重命名根目录。");
+            }
+            this.renameFromPath = null;
+            return;
+        }
 
-        if (!Files.exists(sourcePath)) {
+        if (!exists(sourcePath)) {
             sendReply(550, "文件或目录未找到。");
             // 清除暂存的路径
             this.renameFromPath = null;
@@ -301,19 +598,29 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path directoryPath = currentDirectory.resolve(directoryName).normalize();
+        Path directoryPath = resolvePath(directoryName);
+        if (directoryPath == null) {
+            return;
+        }
+        if (directoryPath.equals(pathResolver.getRoot())) {
+            sendReply(550, "不能删除根目录。");
+            return;
+        }
 
         try {
             // 检查目录是否存在且是目录
-            if (!Files.exists(directoryPath) || !Files.isDirectory(directoryPath)) {
+            BasicFileAttributes attributes = pathResolver.attributes(directoryPath);
+            if (attributes == null || !attributes.isDirectory()) {
                 sendReply(550, "目录未找到或它是一个文件。");
                 return;
             }
 
             // 检查目录是否为空
-            if (Files.list(directoryPath).findAny().isPresent()) {
-                sendReply(550, "目录不为空。");
-                return;
+            try (Stream<Path> entries = Files.list(directoryPath)) {
+                if (entries.findAny().isPresent()) {
+                    sendReply(550, "目录不为空。");
+                    return;
+                }
             }
 
             // 检查是否有写入权限
@@ -323,9 +630,17 @@ public class FtpClientHandler implements Runnable {
             }
 
             // 删除空目录
-            Files.delete(directoryPath);
+            DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(directoryPath);
+            try {
+                Files.delete(directoryPath);
+            } finally {
+                change.commit();
+            }
+            pathResolver.invalidateTree(directoryPath);
+            AuditLog.fileOperation(remoteHost, username, "RMD", directoryPath, true);
             sendReply(250, "请求的文件操作成功，已完成。目录 " + directoryName + " 已删除。");
         } catch (IOException e) {
+            AuditLog.fileOperation(remoteHost, username, "RMD", directoryPath, false);
             sendReply(550, "删除目录失败：" + e.getMessage());
         }
     }
@@ -340,25 +655,36 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path newDirectoryPath = currentDirectory.resolve(directoryName).normalize();
+        Path newDirectoryPath = resolvePath(directoryName);
+        if (newDirectoryPath == null) {
+            return;
+        }
 
         try {
             // 检查父目录是否存在且可写
-            if (newDirectoryPath.getParent() == null || !Files.exists(newDirectoryPath.getParent()) || !Files.isDirectory(newDirectoryPath.getParent()) || !Files.isWritable(newDirectoryPath.getParent())) {
+            if (!isWritableDirectory(newDirectoryPath.getParent())) {
                 sendReply(550, "权限不足或目录创建路径无效。");
                 return;
             }
 
             // 检查目录是否已经存在
-            if (Files.exists(newDirectoryPath)) {
+            if (pathResolver.attributes(newDirectoryPath) != null) {
                 sendReply(550, "目录已存在。");
                 return;
             }
 
             // 创建新目录
-            Files.createDirectory(newDirectoryPath);
-            sendReply(257, "\"" + newDirectoryPath.toAbsolutePath().normalize().toString().replace("\\", "/") + "\" 已创建。");
+            DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(newDirectoryPath);
+            try {
+                Files.createDirectory(newDirectoryPath);
+            } finally {
+                change.commit();
+            }
+            pathResolver.invalidate(newDirectoryPath);
+            AuditLog.fileOperation(remoteHost, username, "MKD", newDirectoryPath, true);
+            sendReply(257, "\"" + pathResolver.toVirtualPath(newDirectoryPath) + "\" 已创建。");
         } catch (IOException e) {
+            AuditLog.fileOperation(remoteHost, username, "MKD", newDirectoryPath, false);
             sendReply(550, "创建目录失败：" + e.getMessage());
         }
     }
@@ -374,11 +700,15 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path filePath = currentDirectory.resolve(filename).normalize();
+        Path filePath = resolvePath(filename);
+        if (filePath == null) {
+            return;
+        }
 
         try {
             // 检查文件是否存在且是一个常规文件（不能删除目录）
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+            BasicFileAttributes attributes = pathResolver.attributes(filePath);
+            if (attributes == null || attributes.isDirectory()) {
                 sendReply(550, "文件未找到或它是一个目录。");
                 return;
             }
@@ -390,9 +720,17 @@ public class FtpClientHandler implements Runnable {
             }
 
             // 执行删除操作
-            Files.delete(filePath);
+            DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(filePath);
+            try {
+                Files.delete(filePath);
+            } finally {
+                change.commit();
+            }
+            pathResolver.invalidate(filePath);
+            AuditLog.fileOperation(remoteHost, username, "DELE", filePath, true);
             sendReply(250, "请求的文件操作成功，已完成。文件 " + filename + " 已删除。");
         } catch (IOException e) {
+            AuditLog.fileOperation(remoteHost, username, "DELE", filePath, false);
             sendReply(550, "删除文件失败：" + e.getMessage());
         }
     }
@@ -407,28 +745,46 @@ public class FtpClientHandler implements Runnable {
             return;
         }
 
-        Path filePath = currentDirectory.resolve(filename).normalize();
+        Path filePath = resolvePath(filename);
+        if (filePath == null) {
+            return;
+        }
 
         // 检查父目录是否存在且是目录，并且可写
-        if (filePath.getParent() == null || !Files.exists(filePath.getParent()) || !Files.isDirectory(filePath.getParent()) || !Files.isWritable(filePath.getParent())) {
+        if (!isWritableDirectory(filePath.getParent())) {
             sendReply(550, "权限不足或上传路径无效。");
             return;
         }
 
         try {
-            sendReply(150, "正在打开二进制模式数据连接，用于写入文件 " + filename + "。");
+            sendReply(150, "正在打开" + transferTypeName() + "模式数据连接，用于写入文件 " + filename + "。");
             Socket dataSocket = dataConnectionManager.createDataSocket();
             if (dataSocket == null) {
                 sendReply(425, "无法打开数据连接。");
                 return;
             }
 
+            long startTime = System.currentTimeMillis();
+            long bytes = 0;
+            boolean complete = false;
             try {
-                // 通过管理器读取数据并写入文件
-                dataConnectionManager.writeFileToPath(dataSocket, filePath);
+                // 通过管理器读取数据并写入文件，启用去重存储且目标能链接到存储时写入共享的内容对象（同时登记内容摘要）
+                if (ContentStore.getInstance().isEnabledFor(filePath)) {
+                    bytes = dataConnectionManager.writeFileToContentStore(dataSocket, filePath);
+                } else {
+                    // 写入的同时计算摘要，之后的HASH命令无需再读取文件
+                    ChecksumService checksumService = ChecksumService.getInstance();
+                    ChecksumService.DigestSet digests = checksumService.newUploadDigests();
+                    bytes = dataConnectionManager.writeFileToPath(dataSocket, filePath, digests);
+                    checksumService.record(filePath, digests);
+                }
+                complete = true;
                 sendReply(226, "传输完成。");
             } finally {
                 dataSocket.close();
+                pathResolver.invalidate(filePath);
+                AuditLog.transfer(remoteHost, System.currentTimeMillis() - startTime, bytes, filePath,
+                        dataConnectionManager.isAsciiMode(), true, username, complete);
             }
         } catch (IOException e) {
             sendReply(550, "存储文件失败：" + e.getMessage());
@@ -447,16 +803,32 @@ public class FtpClientHandler implements Runnable {
             sendReply(530, "未登录。");
             return;
         }
-        Path filePath = currentDirectory.resolve(filename).normalize();
+        Path filePath = resolvePath(filename);
+        if (filePath == null) {
+            return;
+        }
 
-        if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = pathResolver.attributes(filePath);
+        } catch (IOException e) {
+            sendReply(550, "检索文件失败：" + e.getMessage());
+            return;
+        }
+        if (attributes == null || attributes.isDirectory()) {
+            // 请求 "目录名.tar"、"目录名.tar.gz" 或 "目录名.tgz" 时，把整个目录打包发送
+            Path archivedDirectory = attributes != null ? null : TarArchiveStreamer.archivedDirectory(filePath);
+            if (archivedDirectory != null && pathResolver.resolve(currentDirectory, pathResolver.toVirtualPath(archivedDirectory)) != null) {
+                retrieveArchive(filename, archivedDirectory, TarArchiveStreamer.isCompressedName(filePath));
+                return;
+            }
             sendReply(550, "文件未找到或不是一个常规文件。");
             return;
         }
 
         try {
-            long fileSize = Files.size(filePath);
-            sendReply(150, "正在打开二进制模式数据连接，用于文件 " + filename + "（" + fileSize + " 字节）。");
+            long fileSize = attributes.size();
+            sendReply(150, "正在打开" + transferTypeName() + "模式数据连接，用于文件 " + filename + "（" + fileSize + " 字节）。");
             // 通过管理器创建数据Socket
             Socket dataSocket = dataConnectionManager.createDataSocket();
             if (dataSocket == null) {
@@ -464,12 +836,21 @@ public class FtpClientHandler implements Runnable {
                 return;
             }
 
+            long startTime = System.currentTimeMillis();
+            long bytes = 0;
+            boolean complete = false;
             try {
                 // 通过管理器写入文件内容
-                dataConnectionManager.writeFileContent(dataSocket, filePath);
+                bytes = dataConnectionManager.writeFileContent(dataSocket, filePath);
+                complete = true;
                 sendReply(226, "传输完成。");
+            } catch (FtpDataConnectionManager.TruncatedTransferException e) {
+                bytes = e.getTransferredBytes();
+                sendReply(451, "传输中止：" + e.getMessage());
             } finally {
                 dataSocket.close();
+                AuditLog.transfer(remoteHost, System.currentTimeMillis() - startTime, bytes, filePath,
+                        dataConnectionManager.isAsciiMode(), false, username, complete);
             }
         } catch (IOException e) {
             sendReply(550, "检索文件失败：" + e.getMessage());
@@ -477,16 +858,133 @@ public class FtpClientHandler implements Runnable {
     }
 
     /**
-     * 处理LIST命令。
-     * 该命令用于获取当前工作目录或指定目录的文件和子目录列表。
-     * 数据列表通过数据连接传输给客户端。
-     * 需要用户已登录才能执行。
+     * 以tar归档的形式在一个数据连接上发送整个目录树，归档边遍历边生成，大小事先未知。
+     * @param filename 客户端请求的归档文件名
+     * @param directory 要归档的目录
+     * @param compress 是否使用gzip压缩
+     */
+    private void retrieveArchive(String filename, Path directory, boolean compress) {
+        try {
+            sendReply(150, "正在打开二进制模式数据连接，用于目录归档 " + filename + "。");
+            Socket dataSocket = dataConnectionManager.createDataSocket();
+            if (dataSocket == null) {
+                sendReply(425, "无法打开数据连接。");
+                return;
+            }
+
+            long startTime = System.currentTimeMillis();
+            long bytes = 0;
+            boolean complete = false;
+            try {
+                bytes = dataConnectionManager.writeDirectoryArchive(dataSocket, directory, compress);
+                complete = true;
+                sendReply(226, "传输完成。");
+            } catch (FtpDataConnectionManager.TruncatedTransferException e) {
+                bytes = e.getTransferredBytes();
+                sendReply(451, "传输中止：" + e.getMessage());
+            } finally {
+                dataSocket.close();
+                AuditLog.transfer(remoteHost, System.currentTimeMillis() - startTime, bytes, directory, false, false, username, complete);
+            }
+        } catch (IOException e) {
+            sendReply(550, "发送目录归档失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 处理LIST和NLST命令。
+     * 参数可以是目录、文件或带通配符（* ? [ ]）的名称，例如 "LIST logs/*.gz"；"-l"、"-a"等ls风格的选项被忽略。
+     * 分页扩展：在路径前加上 --limit=N 以及 --offset=N 或 --after=令牌，
+     * 本页之后还有内容时226回复以 "NEXT=令牌" 结尾，把该令牌作为下一次的 --after 即可继续。
+     * 名称来自按名称排序的目录索引，翻页不必重新读取整个目录。
+     * @param argument 命令参数
+     * @param detailed true表示LIST（详细格式），false表示NLST（只有名称）
      */
-    private void handleLIST() {
+    private void handleLIST(String argument, boolean detailed) {
         if (!isAuthenticated) {
             sendReply(530, "未登录。");
             return;
         }
+
+        // 解析路径之前的选项
+        String remaining = argument.trim();
+        int limit = 0;
+        int offset = 0;
+        String after = null;
+        boolean paged = false;
+        while (remaining.startsWith("-")) {
+            int space = remaining.indexOf(' ');
+            String option = space < 0 ? remaining : remaining.substring(0, space);
+            remaining = space < 0 ? "" : remaining.substring(space + 1).trim();
+            try {
+                if (option.startsWith("--limit=")) {
+                    limit = Integer.parseInt(option.substring("--limit=".length()));
+                    paged = true;
+                } else if (option.startsWith("--offset=")) {
+                    offset = Integer.parseInt(option.substring("--offset=".length()));
+                    paged = true;
+                } else if (option.startsWith("--after=")) {
+                    after = new String(Base64.getUrlDecoder().decode(option.substring("--after=".length())), StandardCharsets.UTF_8);
+                    paged = true;
+                }
+            } catch (IllegalArgumentException e) {
+                sendReply(501, "无效的列表选项：" + option);
+                return;
+            }
+        }
+
+        // 拆分出目录部分和最后一段名称，最后一段含通配符时作为过滤条件
+        Path directory = currentDirectory;
+        String prefix = "";
+        Predicate<String> filter = null;
+        if (!remaining.isEmpty()) {
+            int slash = remaining.lastIndexOf('/');
+            String lastSegment = remaining.substring(slash + 1);
+            String directoryPart = slash < 0 ? "" : remaining.substring(0, slash + 1);
+            if (lastSegment.matches(".*[*?\\[].*")) {
+                PathMatcher matcher;
+                try {
+                    matcher = FileSystems.getDefault().getPathMatcher("glob:" + lastSegment);
+                } catch (IllegalArgumentException e) {
+                    // 例如未闭合的 "["
+                    sendReply(501, "无效的通配符：" + lastSegment);
+                    return;
+                }
+                filter = name -> matcher.matches(Paths.get(name));
+                directory = directoryPart.isEmpty() ? currentDirectory : resolvePath(directoryPart);
+                prefix = directoryPart;
+            } else {
+                Path target = resolvePath(remaining);
+                if (target == null) {
+                    return;
+                }
+                if (isDirectory(target)) {
+                    directory = target;
+                    prefix = remaining.endsWith("/") ? remaining : remaining + "/";
+                } else if (exists(target) && target.getParent() != null) {
+                    // 列出单个文件
+                    String fileName = target.getFileName().toString();
+                    directory = target.getParent();
+                    filter = fileName::equals;
+                    prefix = directoryPart;
+                } else {
+                    sendReply(550, "文件或目录不存在。");
+                    return;
+                }
+            }
+            if (directory == null) {
+                return;
+            }
+        }
+
+        DirectoryIndex.Page page;
+        try {
+            page = DirectoryIndex.getInstance().page(directory, filter, offset, after, limit);
+        } catch (IOException e) {
+            sendReply(550, "无法读取目录：" + e.getMessage());
+            return;
+        }
+
         try {
             sendReply(150, "正在打开 ASCII 模式数据连接以获取文件列表。");
             // 通过管理器创建数据Socket
@@ -498,11 +996,18 @@ public class FtpClientHandler implements Runnable {
 
             try {
                 // 通过管理器写入文件列表
-                dataConnectionManager.writeFileList(dataSocket, currentDirectory);
-                sendReply(226, "传输完成。");
+                dataConnectionManager.writeFileList(dataSocket, directory, page.getNames(), detailed, prefix);
             } finally {
                 dataSocket.close();
             }
+            List<String> names = page.getNames();
+            if (paged && page.hasMore() && !names.isEmpty()) {
+                String token = Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(names.get(names.size() - 1).getBytes(StandardCharsets.UTF_8));
+                sendReply(226, "传输完成，本页 " + names.size() + " 项。NEXT=" + token);
+            } else {
+                sendReply(226, "传输完成。");
+            }
         } catch (IOException e) {
             sendReply(425, "无法打开数据连接。" + e.getMessage());
         }
@@ -545,7 +1050,7 @@ public class FtpClientHandler implements Runnable {
             sendReply(501, "参数或语法错误（EPRT 格式）。");
         } catch (Exception e) {
             sendReply(501, "参数或语法错误：" + e.getMessage());
-            e.printStackTrace();
+            AuditLog.error("解析EPRT参数失败：" + arg, e);
         }
     }
 
@@ -606,18 +1111,29 @@ public class FtpClientHandler implements Runnable {
     /**
      * 处理TYPE命令。
      * 该命令用于设置数据传输类型，常见的有ASCII模式（'A'）和二进制模式（'I'）。
+     * ASCII模式下文件传输会在网络行尾（CRLF）和本地行尾之间转换；目录归档始终按二进制发送。
      * @param type 客户端请求设置的数据传输类型，通常是"A"或"I"
      */
     private void handleTYPE(String type) {
-        if (type.equalsIgnoreCase("A")) {
+        String normalized = type.trim().replaceAll("\\s+", " ").toUpperCase();
+        if (normalized.equals("A") || normalized.equals("A N")) {
+            dataConnectionManager.setAsciiMode(true);
             sendReply(200, "类型已设置为 ASCII。");
-        } else if (type.equalsIgnoreCase("I")) {
+        } else if (normalized.equals("I") || normalized.equals("L 8")) {
+            dataConnectionManager.setAsciiMode(false);
             sendReply(200, "类型已设置为二进制。");
         } else {
             sendReply(504, "该参数的命令未实现。");
         }
     }
 
+    /**
+     * @return 当前传输类型在回复中显示的名称
+     */
+    private String transferTypeName() {
+        return dataConnectionManager.isAsciiMode() ? " ASCII " : "二进制";
+    }
+
     /**
      * 处理CWD命令。
      * 该命令用于更改客户端在服务器上的当前虚拟工作目录。
@@ -629,10 +1145,13 @@ public class FtpClientHandler implements Runnable {
             sendReply(530, "未登录。");
             return;
         }
-        Path newPath = currentDirectory.resolve(path).normalize();
-        if (Files.exists(newPath) && Files.isDirectory(newPath)) {
+        Path newPath = resolvePath(path);
+        if (newPath == null) {
+            return;
+        }
+        if (isDirectory(newPath)) {
             currentDirectory = newPath;
-            sendReply(250, "目录已成功更改为 " + currentDirectory.toAbsolutePath().normalize().toString().replace("\\", "/") + "。");
+            sendReply(250, "目录已成功更改为 " + pathResolver.toVirtualPath(currentDirectory) + "。");
         } else {
             sendReply(550, "更改目录失败。目录未找到或不可访问。");
         }
@@ -648,7 +1167,7 @@ public class FtpClientHandler implements Runnable {
             sendReply(530, "未登录。");
             return;
         }
-        sendReply(257, "\"" + currentDirectory.toAbsolutePath().normalize().toString().replace("\\", "/") + "\" 是当前目录。");
+        sendReply(257, "\"" + pathResolver.toVirtualPath(currentDirectory) + "\" 是当前目录。");
     }
 
     /**
@@ -657,23 +1176,169 @@ public class FtpClientHandler implements Runnable {
      * @param argument OPTS命令的参数
      */
     private void handleOPTS(String argument) {
+        String[] option = argument.trim().split("\\s+", 2);
         if (argument.equalsIgnoreCase("UTF8 ON")) {
             sendReply(200, "UTF8 command successful.");
+        } else if (option[0].equalsIgnoreCase("HASH")) {
+            // OPTS HASH 查询当前算法，OPTS HASH <算法> 选择HASH命令使用的算法
+            if (option.length == 1) {
+                sendReply(200, hashAlgorithm);
+                return;
+            }
+            String algorithm = ChecksumService.canonicalName(option[1]);
+            if (algorithm == null) {
+                sendReply(504, "不支持的摘要算法。");
+                return;
+            }
+            hashAlgorithm = algorithm;
+            sendReply(200, algorithm);
         } else {
             sendReply(501, "参数或语法错误（不支持的OPTS参数）。");
         }
     }
 
     /**
-     * 处理QUIT命令。
+     * 处理SITE命令，目前支持 SITE WHO：列出活动会话的状态、当前命令、收发字节数、传输速率和空闲时间。
+     * session.admin.users 中的用户可以看到所有会话，其他用户只能看到自己登录的会话。
+     * @param argument SITE之后的子命令
      */
-    private void handleQUIT() {
-        sendReply(221, "再见。");
+    private void handleSITE(String argument) {
+        if (!isAuthenticated) {
+            sendReply(530, "未登录。");
+            return;
+        }
+        if (!argument.trim().equalsIgnoreCase("WHO")) {
+            sendReply(504, "不支持的SITE命令。");
+            return;
+        }
+        boolean admin = false;
+        for (String adminUser : ServerConfig.getInstance().getString("session.admin.users", "admin").split(",")) {
+            if (adminUser.trim().equals(username)) {
+                admin = true;
+                break;
+            }
+        }
+        List<SessionRegistry.Session> sessions = SessionRegistry.getInstance().list();
+        writer.println("211-活动会话 " + sessions.size() + " 个：");
+        for (SessionRegistry.Session other : sessions) {
+            if (admin || username.equals(other.getUsername())) {
+                writer.println(" " + other.describe());
+            }
+        }
+        sendReply(211, "结束");
+    }
+
+    /**
+     * 处理FEAT命令，列出服务器支持的扩展命令。
+     */
+    private void handleFEAT() {
+        writer.println("211-支持的扩展：");
+        if (TlsContext.getInstance() != null) {
+            writer.println(" AUTH TLS");
+            writer.println(" PBSZ");
+            writer.println(" PROT");
+        }
+        writer.println(" SIZE");
+        writer.println(" MDTM");
+        writer.println(" EPRT");
+        writer.println(" UTF8");
+        writer.println(" LISTPAGE --limit;--offset;--after");
+        // HASH扩展列出所有算法，当前选择的算法后加"*"
+        StringBuilder hashFeature = new StringBuilder(" HASH ");
+        for (String algorithm : ChecksumService.getInstance().getAlgorithms()) {
+            if (hashFeature.length() > 6) {
+                hashFeature.append(';');
+            }
+            hashFeature.append(algorithm).append(algorithm.equals(hashAlgorithm) ? "*" : "");
+        }
+        writer.println(hashFeature);
+        writer.println(" XCRC");
+        writer.println(" XMD5");
+        writer.println(" XSHA1");
+        writer.println(" XSHA256");
+        writer.println(" XSHA512");
+        sendReply(211, "结束");
+    }
+
+    /**
+     * 处理AUTH命令（RFC 4217）。
+     * 回复234后在控制连接上完成TLS握手，之后的命令和响应都经过加密。
+     * @param mechanism 安全机制，只支持TLS（以及兼容旧客户端的SSL、TLS-C）
+     */
+    private void handleAUTH(String mechanism) {
+        TlsContext tlsContext = TlsContext.getInstance();
+        if (tlsContext == null) {
+            sendReply(502, "服务器未启用TLS。");
+            return;
+        }
+        if (controlSecured) {
+            sendReply(503, "控制连接已经加密。");
+            return;
+        }
+        String upper = mechanism.trim().toUpperCase();
+        if (!upper.equals("TLS") && !upper.equals("TLS-C") && !upper.equals("SSL")) {
+            sendReply(504, "不支持的安全机制。");
+            return;
+        }
+
+        sendReply(234, "AUTH " + upper + " 成功，开始TLS协商。");
         try {
-            controlSocket.close();
+            Socket secureSocket = tlsContext.secure(controlSocket);
+            this.controlSocket = secureSocket;
+            this.reader = new BufferedReader(new InputStreamReader(secureSocket.getInputStream()));
+            this.writer = new PrintWriter(secureSocket.getOutputStream(), true);
+            this.controlSecured = true;
+            // 重新协商安全机制后，之前的登录状态失效
+            this.isAuthenticated = false;
+            this.username = null;
         } catch (IOException e) {
-            e.printStackTrace();
+            AuditLog.error("控制连接TLS握手失败：" + remoteHost, e);
+            closeControlSocket();
+        }
+    }
+
+    /**
+     * 处理PBSZ命令。TLS下缓冲区大小没有意义，只接受0。
+     * @param size 客户端请求的保护缓冲区大小
+     */
+    private void handlePBSZ(String size) {
+        if (!controlSecured) {
+            sendReply(503, "请先执行 AUTH TLS。");
+            return;
         }
+        protectionBufferSizeSet = true;
+        sendReply(200, "PBSZ=0");
+    }
+
+    /**
+     * 处理PROT命令，设置数据连接的保护级别：C为明文，P为加密。
+     * @param level 保护级别
+     */
+    private void handlePROT(String level) {
+        if (!controlSecured || !protectionBufferSizeSet) {
+            sendReply(503, "请先执行 AUTH TLS 和 PBSZ。");
+            return;
+        }
+        String upper = level.trim().toUpperCase();
+        if (upper.equals("P")) {
+            dataConnectionManager.setDataProtected(true);
+            sendReply(200, "数据连接保护级别设置为 Private。");
+        } else if (upper.equals("C")) {
+            dataConnectionManager.setDataProtected(false);
+            sendReply(200, "数据连接保护级别设置为 Clear。");
+        } else if (upper.equals("S") || upper.equals("E")) {
+            sendReply(536, "不支持该保护级别。");
+        } else {
+            sendReply(504, "该参数的命令未实现。");
+        }
+    }
+
+    /**
+     * 处理QUIT命令。
+     */
+    private void handleQUIT() {
+        sendReply(221, "再见。");
+        closeControlSocket();
     }
 
     /**
@@ -683,9 +1348,15 @@ public class FtpClientHandler implements Runnable {
     private void handlePASS(String password) {
         if (!isAuthenticated && username != null && userAuthenticator.authenticate(username, password)) {
             isAuthenticated = true;
+            // 切换到该用户的根目录
+            pathResolver = new PathResolver(PathResolver.rootFor(username));
+            currentDirectory = pathResolver.getRoot();
+            AuditLog.login(remoteHost, username, true);
+            session.setUsername(username);
             sendReply(230, "用户 " + username + " 已登录。");
         } else {
             isAuthenticated = false;
+            AuditLog.login(remoteHost, username, false);
             sendReply(530, "未登录。用户名或密码不正确。");
         }
     }
@@ -695,6 +1366,11 @@ public class FtpClientHandler implements Runnable {
      * @param user 客户端提供的用户名
      */
     private void handleUSER(String user) {
+        TlsContext tlsContext = TlsContext.getInstance();
+        if (tlsContext != null && tlsContext.isRequired() && !controlSecured) {
+            sendReply(530, "服务器要求先执行 AUTH TLS 加密控制连接。");
+            return;
+        }
         this.username = user;
         boolean isValid = userAuthenticator.isUsernameValid(username);
 
@@ -706,6 +1382,49 @@ public class FtpClientHandler implements Runnable {
         }
     }
 
+    /**
+     * 把客户端提供的路径解析为服务器上的路径，路径超出用户根目录时直接回复550。
+     * @param argument 客户端提供的路径
+     * @return 解析后的路径，越界时返回null
+     */
+    private Path resolvePath(String argument) {
+        Path path = pathResolver.resolve(currentDirectory, argument);
+        if (path == null) {
+            sendReply(550, "权限被拒绝，路径超出用户根目录。");
+        }
+        return path;
+    }
+
+    /**
+     * 通过属性缓存判断路径是否存在
+     */
+    private boolean exists(Path path) {
+        try {
+            return pathResolver.attributes(path) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 通过属性缓存判断路径是否为目录
+     */
+    private boolean isDirectory(Path path) {
+        try {
+            BasicFileAttributes attributes = pathResolver.attributes(path);
+            return attributes != null && attributes.isDirectory();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 判断目录是否位于用户根目录内、存在且可写，用于创建、上传和重命名前的检查
+     */
+    private boolean isWritableDirectory(Path directory) {
+        return directory != null && directory.startsWith(pathResolver.getRoot()) && isDirectory(directory) && Files.isWritable(directory);
+    }
+
     /**
      * 向客户端发送一个包含响应码和对应的文本消息的FTP协议响应。
      * @param code FTP响应码
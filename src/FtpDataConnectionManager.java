@@ -1,14 +1,35 @@
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.SSLSocket;
 
 public class FtpDataConnectionManager {
     // 数据传输模式
@@ -17,19 +38,96 @@ public class FtpDataConnectionManager {
     private String dataHost;
     // 数据连接的目标端口
     private int dataPort;
+    // 当前正在使用的数据连接，服务器强制关闭会话时用来中断传输
+    private volatile Socket activeDataSocket;
+    // 被动模式下的监听Socket，从PASV命令开始一直保持监听，避免客户端连接时端口尚未打开
+    private volatile ServerSocket passiveListener;
+    // 被动模式下在后台等待客户端连接（并完成TLS握手）的任务，驱逐会话的线程也会取消它
+    private volatile Future<Socket> pendingPassiveSocket;
+    // 该任务已接受的连接，任务被放弃时（例如握手进行中又收到新的PASV）由此关闭
+    private volatile PendingPassiveConnection pendingPassiveConnection;
+    // 控制连接的客户端地址，被动模式只接受来自该地址的数据连接
+    private final InetAddress controlPeer;
+    // 数据连接是否需要加密（PROT P）
+    private boolean dataProtected;
+    // 是否为ASCII传输类型（TYPE A），此时文件内容需要转换行尾
+    private boolean asciiMode;
+    // 所属会话的运行状况，传输的字节数计入其中
+    private final SessionRegistry.Session session;
 
     // 连接超时时间
     private static final int DATA_CONNECTION_TIMEOUT_MS = 10000;
-    // 缓冲区大小
-    private static final int TRANSFER_BUFFER_SIZE = 4096;
+    // 被动模式下后台等待客户端连接的最长时间
+    private static final int PASSIVE_ACCEPT_TIMEOUT_MS = 60000;
+    // 是否拒绝来自控制连接之外地址的被动数据连接（防止他人抢先连上监听端口窃取或注入数据）
+    private static final boolean CHECK_PASSIVE_PEER = ServerConfig.getInstance().getBoolean("pasv.check.peer", true);
+    // 数据连接上的读写至少一次处理的字节数，Socket缓冲区更大时按Socket缓冲区取整
+    private static final int MIN_TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    // 数据连接的发送缓冲区（下载时设置），0表示使用操作系统默认值（Linux上会自动调整）
+    private static final int SOCKET_SEND_BUFFER = ServerConfig.getInstance().getInt("transfer.socket.send.buffer", 0);
+    // 数据连接的接收缓冲区（上传时设置），0表示使用操作系统默认值
+    private static final int SOCKET_RECEIVE_BUFFER = ServerConfig.getInstance().getInt("transfer.socket.receive.buffer", 0);
+    // 数据连接的IP服务类型（IP_TOS），-1表示不设置
+    private static final int SOCKET_TRAFFIC_CLASS = ServerConfig.getInstance().getInt("transfer.socket.traffic.class", -1);
+
+    // 是否允许用零拷贝（sendfile）发送文件
+    private static final boolean ZERO_COPY_ENABLED = ServerConfig.getInstance().getBoolean("download.zero.copy", true);
+    // 预读下载路径的窗口大小
+    private static final int READ_AHEAD_WINDOW = Math.max(1, ServerConfig.getInstance().getInt("download.readahead.window", 256 * 1024));
+    // 预读下载路径同时在途的读请求数量
+    private static final int READ_AHEAD_DEPTH = Math.max(1, ServerConfig.getInstance().getInt("download.readahead.depth", 4));
+
+    // 在后台接受被动连接并完成TLS握手的线程池，握手与会话线程处理命令的过程重叠
+    private static final ExecutorService HANDSHAKE_POOL = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-data-handshake");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * 构造函数。
+     * @param controlPeer 控制连接的客户端地址
+     * @param session 所属会话的运行状况
      */
-    public FtpDataConnectionManager() {
+    public FtpDataConnectionManager(InetAddress controlPeer, SessionRegistry.Session session) {
+        this.controlPeer = controlPeer;
+        this.session = session;
         this.dataTransferMode = null;
         this.dataHost = null;
         this.dataPort = 0;
+        this.dataProtected = false;
+        this.asciiMode = false;
+    }
+
+    /**
+     * 设置数据连接是否加密（PROT P / PROT C）。
+     * @param dataProtected true表示数据连接使用TLS
+     */
+    public void setDataProtected(boolean dataProtected) {
+        this.dataProtected = dataProtected;
+    }
+
+    /**
+     * @return 数据连接是否加密
+     */
+    public boolean isDataProtected() {
+        return dataProtected;
+    }
+
+    /**
+     * 设置传输类型（TYPE A / TYPE I）。
+     * @param asciiMode true表示ASCII类型，文件内容在传输时转换行尾
+     */
+    public void setAsciiMode(boolean asciiMode) {
+        this.asciiMode = asciiMode;
+    }
+
+    /**
+     * @return 是否为ASCII传输类型
+     */
+    public boolean isAsciiMode() {
+        return asciiMode;
     }
 
     /**
@@ -38,6 +136,7 @@ public class FtpDataConnectionManager {
      * @param port 客户端提供的数据连接端口
      */
     public void setPortMode(String host, int port) {
+        closePassiveListener();
         this.dataTransferMode = "PORT";
         this.dataHost = host;
         this.dataPort = port;
@@ -45,21 +144,70 @@ public class FtpDataConnectionManager {
 
     /**
      * 设置数据传输模式为PASV，并返回服务器监听的端口。
+     * 监听Socket立即开始在后台等待客户端连接，需要加密时连接建立后马上进行TLS握手，
+     * 这样到传输命令到达时数据连接往往已经就绪。
      * @return 服务器为数据连接监听的端口号
      * @throws IOException 如果无法打开ServerSocket
      */
     public int setPasvMode() throws IOException {
+        closePassiveListener();
         // 通过监听一个临时端口来让系统自动分配一个可用端口
-        try (ServerSocket tempPasvServerSocket = new ServerSocket(0)) {
-            // 获取系统分配的端口
-            this.dataPort = tempPasvServerSocket.getLocalPort();
+        // 基于通道创建，接受到的Socket可以直接使用零拷贝发送文件
+        ServerSocket listener = ServerSocketChannel.open().socket();
+        if (SOCKET_RECEIVE_BUFFER > 0) {
+            // 接收缓冲区必须在建立连接之前设置，才能协商出足够大的TCP窗口
+            listener.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER);
         }
+        listener.bind(new InetSocketAddress(0), 1);
+        boolean secure = dataProtected;
+        PendingPassiveConnection connection = new PendingPassiveConnection();
+        this.passiveListener = listener;
+        this.pendingPassiveConnection = connection;
+        this.pendingPassiveSocket = HANDSHAKE_POOL.submit(() -> {
+            Socket socket;
+            try {
+                socket = acceptFromControlPeer(listener);
+            } finally {
+                // 每次PASV只接受一个数据连接
+                listener.close();
+            }
+            if (!connection.attach(socket)) {
+                socket.close();
+                throw new SocketException("被动数据连接已被放弃");
+            }
+            return secure ? TlsContext.getInstance().secure(socket) : socket;
+        });
+        // 获取系统分配的端口
+        this.dataPort = listener.getLocalPort();
         this.dataTransferMode = "PASV";
         return this.dataPort;
     }
 
+    /**
+     * 接受被动数据连接，来自控制连接之外地址的连接直接关闭并继续等待，直到监听超时
+     */
+    private Socket acceptFromControlPeer(ServerSocket listener) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PASSIVE_ACCEPT_TIMEOUT_MS);
+        while (true) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("等待被动数据连接超时");
+            }
+            // 被拒绝的连接不延长等待时间
+            listener.setSoTimeout((int) remaining);
+            Socket socket = listener.accept();
+            if (!CHECK_PASSIVE_PEER || controlPeer == null || controlPeer.equals(socket.getInetAddress())) {
+                return socket;
+            }
+            AuditLog.info("拒绝来自 " + socket.getInetAddress().getHostAddress() + " 的被动数据连接，控制连接来自 "
+                    + controlPeer.getHostAddress());
+            socket.close();
+        }
+    }
+
     /**
      * 根据当前设置的数据传输模式，创建并返回一个数据连接的Socket。
+     * PROT P时返回的是已完成TLS握手的连接。
      * @return 成功建立的数据连接Socket，如果失败则返回null。
      * @throws IOException 如果在建立连接过程中发生IO错误。
      */
@@ -68,62 +216,161 @@ public class FtpDataConnectionManager {
             return null;
         }
 
+        Socket socket = null;
         if ("PORT".equalsIgnoreCase(dataTransferMode)) {
             // 主动模式：服务器主动连接客户端指定的IP和端口
-            return new Socket(dataHost, dataPort);
+            SocketChannel channel = SocketChannel.open();
+            if (SOCKET_RECEIVE_BUFFER > 0) {
+                channel.socket().setReceiveBufferSize(SOCKET_RECEIVE_BUFFER);
+            }
+            channel.connect(new InetSocketAddress(dataHost, dataPort));
+            socket = channel.socket();
         } else if ("PASV".equalsIgnoreCase(dataTransferMode)) {
-            // 被动模式：服务器监听之前通过PASV命令告知客户端的端口，并等待客户端连接
-            ServerSocket tempPasvServerSocket = null;
-            try {
-                tempPasvServerSocket = new ServerSocket(dataPort);
-                tempPasvServerSocket.setSoTimeout(DATA_CONNECTION_TIMEOUT_MS);
-
-                // 阻塞等待客户端连接
-                Socket clientDataSocket = tempPasvServerSocket.accept();
-                return clientDataSocket;
-            } catch (SocketTimeoutException e) {
-                // 连接超时，返回null
+            // 被动模式：取回PASV命令时已开始的后台连接
+            socket = takePassiveSocket();
+            if (socket == null) {
                 return null;
-            } finally {
-                if (tempPasvServerSocket != null && !tempPasvServerSocket.isClosed()) {
-                    // 无论成功与否，都关闭这个临时的ServerSocket
-                    tempPasvServerSocket.close();
+            }
+        } else {
+            // 不支持的模式
+            return null;
+        }
+
+        if (dataProtected && !(socket instanceof SSLSocket)) {
+            socket = TlsContext.getInstance().secure(socket);
+        } else if (!dataProtected && socket instanceof SSLSocket) {
+            // PASV之后又切换回PROT C，已完成的加密连接无法降级
+            socket.close();
+            return null;
+        }
+        activeDataSocket = socket;
+        session.transferStarted();
+        return socket;
+    }
+
+    /**
+     * 等待被动模式的后台连接任务完成
+     */
+    private Socket takePassiveSocket() throws IOException {
+        Future<Socket> pending = pendingPassiveSocket;
+        pendingPassiveSocket = null;
+        // 每个PASV只对应一次传输
+        dataTransferMode = null;
+        if (pending == null) {
+            return null;
+        }
+        try {
+            Socket socket = pending.get(DATA_CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // 连接已交给本次传输，之后不再由 closePassiveListener 关闭
+            pendingPassiveConnection = null;
+            return socket;
+        } catch (TimeoutException e) {
+            // 连接超时，返回null
+            pendingPassiveSocket = pending;
+            closePassiveListener();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SocketTimeoutException) {
+                return null;
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("建立被动数据连接失败", e.getCause());
+        }
+    }
+
+    /**
+     * 关闭尚未使用的被动模式监听Socket，以及已在后台建立但没有被传输命令取走的数据连接
+     */
+    private void closePassiveListener() {
+        PendingPassiveConnection connection = pendingPassiveConnection;
+        pendingPassiveConnection = null;
+        if (connection != null) {
+            // 后台任务可能正阻塞在TLS握手中，中断线程不能让它返回，需要关闭已接受的连接
+            connection.abandon();
+        }
+        Future<Socket> pending = pendingPassiveSocket;
+        pendingPassiveSocket = null;
+        if (pending != null && !pending.cancel(true) && !pending.isCancelled()) {
+            try {
+                pending.get().close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IOException e) {
+                // 后台连接本身已失败，无需处理
+            }
+        }
+        ServerSocket listener = passiveListener;
+        passiveListener = null;
+        if (listener != null && !listener.isClosed()) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                AuditLog.error("关闭被动模式监听Socket失败", e);
+            }
+        }
+    }
+
+    /**
+     * 关闭当前正在使用的数据连接，使阻塞中的传输立即以IO异常结束。
+     */
+    public void closeActiveDataSocket() {
+        closePassiveListener();
+        Socket socket = activeDataSocket;
+        if (socket != null) {
+            if (!(socket instanceof SSLSocket) && !socket.isClosed()) {
+                // 阻塞在sendfile（FileChannel.transferTo）中的线程不会因为Socket被关闭而返回，
+                // 先关闭两个方向，内核会让阻塞中的发送和接收立即失败
+                try {
+                    socket.shutdownInput();
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // 连接已经断开，直接关闭即可
                 }
             }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                AuditLog.error("关闭数据连接失败", e);
+            }
         }
-        // 不支持的模式
-        return null;
     }
 
     /**
-     * 将格式化的文件列表写入到数据连接中。
+     * 通过数据连接发送文件列表，每行以CRLF结束。
      * @param dataSocket 已建立的数据连接Socket
-     * @param currentDirectory 需要列出内容的目录路径
+     * @param directory 名称所在的目录
+     * @param names 要列出的名称
+     * @param detailed true表示LIST的详细格式，false表示NLST只输出名称
+     * @param prefix NLST时加在名称前的路径前缀（客户端参数中的目录部分），可以为空字符串
      * @throws IOException 如果写入数据时发生IO错误
      */
-    public void writeFileList(Socket dataSocket, Path currentDirectory) throws IOException {
-        try (PrintWriter dataWriter = new PrintWriter(dataSocket.getOutputStream(), true)) {
-            // 遍历当前目录下的所有文件和子目录
-            Files.list(currentDirectory).forEach(path -> {
-                try {
-                    // 根据文件类型设置权限字符串：目录为drwxr-xr-x，文件为-rw-r--r--
-                    String permissions = Files.isDirectory(path) ? "drwxr-xr-x" : "-rw-r--r--";
-                    String owner = "ftp";
-                    String group = "ftp";
-                    // 获取文件大小，如果是目录则大小为0
-                    long size = Files.isDirectory(path) ? 0 : Files.size(path);
-                    // 格式化文件的最后修改时间
-                    SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm", java.util.Locale.ENGLISH);
-                    String date = sdf.format(new Date(Files.getLastModifiedTime(path).toMillis()));
-                    // 获取文件或目录的名称
-                    String name = path.getFileName().toString();
-
-                    // 格式化输出字符串，遵循FTP LIST命令的标准格式
-                    dataWriter.println(String.format("%s 1 %s %s %10d %s %s", permissions, owner, group, size, date, name));
-                } catch (IOException e) {
-                    e.printStackTrace();
+    public void writeFileList(Socket dataSocket, Path directory, List<String> names, boolean detailed, String prefix) throws IOException {
+        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm", java.util.Locale.ENGLISH);
+        try (Writer dataWriter = new BufferedWriter(new OutputStreamWriter(session.countOutput(dataSocket.getOutputStream()), StandardCharsets.UTF_8),
+                MIN_TRANSFER_BUFFER_SIZE)) {
+            for (String name : names) {
+                if (!detailed) {
+                    dataWriter.write(prefix + name + "\r\n");
+                    continue;
+                }
+                Path path = directory.resolve(name);
+                // 一次读取全部属性（经过属性缓存），文件在列出之前被删除时跳过
+                BasicFileAttributes attributes = FileAttributeCache.getInstance().get(path);
+                if (attributes == null) {
+                    continue;
                 }
-            });
+                // 根据文件类型设置权限字符串：目录为drwxr-xr-x，文件为-rw-r--r--
+                String permissions = attributes.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--";
+                long size = attributes.isDirectory() ? 0 : attributes.size();
+                String date = sdf.format(new Date(attributes.lastModifiedTime().toMillis()));
+                // 格式化输出字符串，遵循FTP LIST命令的标准格式
+                dataWriter.write(String.format("%s 1 %s %s %10d %s %s\r\n", permissions, "ftp", "ftp", size, date, name));
+            }
         }
     }
 
@@ -131,34 +378,277 @@ public class FtpDataConnectionManager {
      * 将指定文件的内容通过数据连接发送给客户端
      * @param dataSocket 已建立的数据连接Socket
      * @param filePath 要传输的文件的路径
+     * @return 已发送的文件字节数（ASCII类型时为转换行尾之前的字节数）
+     * @throws TruncatedTransferException 如果文件在传输过程中被截断，没有发送到开始时的大小
      * @throws IOException 如果读写文件或网络传输时发生IO错误
      */
-    public void writeFileContent(Socket dataSocket, Path filePath) throws IOException {
-        try (InputStream fileIn = Files.newInputStream(filePath);
-             OutputStream dataOut = dataSocket.getOutputStream()) {
+    public long writeFileContent(Socket dataSocket, Path filePath) throws IOException {
+        int bufferSize = tuneForTransfer(dataSocket, false);
+        SocketChannel socketChannel = dataSocket.getChannel();
+        if (ZERO_COPY_ENABLED && !asciiMode && socketChannel != null && !(dataSocket instanceof SSLSocket)) {
+            return transferFileZeroCopy(socketChannel, filePath, bufferSize);
+        }
+        return transferFileReadAhead(dataSocket, filePath);
+    }
+
+    /**
+     * 明文二进制下载：由内核直接把文件页发送到Socket（Linux上为sendfile），数据不经过用户空间。
+     * 每次最多发送一个缓冲区大小，使会话的传输进度能及时更新，慢速客户端不会被误判为停滞。
+     */
+    private long transferFileZeroCopy(SocketChannel socketChannel, Path filePath, int chunkSize) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                long sent = fileChannel.transferTo(position, Math.min(chunkSize, size - position), socketChannel);
+                if (sent <= 0) {
+                    // 文件在传输过程中被截断
+                    break;
+                }
+                position += sent;
+                session.addBytesOut(sent);
+            }
+            if (position < size) {
+                throw new TruncatedTransferException(position, size);
+            }
+            return position;
+        }
+    }
 
-            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = fileIn.read(buffer)) != -1) {
-                dataOut.write(buffer, 0, bytesRead);
+    /**
+     * 无法零拷贝时（TLS加密的数据连接或ASCII类型的传输）的下载路径：
+     * 预读后续窗口的同时发送当前窗口，避免磁盘和网络轮流空闲
+     */
+    private long transferFileReadAhead(Socket dataSocket, Path filePath) throws IOException {
+        try (ReadAheadFileReader fileIn = new ReadAheadFileReader(filePath, READ_AHEAD_WINDOW, READ_AHEAD_DEPTH);
+             OutputStream networkOut = session.countOutput(dataSocket.getOutputStream());
+             OutputStream dataOut = asciiMode ? AsciiLineTranslator.toNetwork(networkOut) : networkOut) {
+            long totalBytes = 0;
+            ByteBuffer window;
+            while ((window = fileIn.next()) != null) {
+                dataOut.write(window.array(), window.arrayOffset() + window.position(), window.remaining());
+                totalBytes += window.remaining();
+            }
+            if (totalBytes < fileIn.getSize()) {
+                throw new TruncatedTransferException(totalBytes, fileIn.getSize());
             }
+            return totalBytes;
         }
     }
 
     /**
-     * 从数据连接中读取数据并写入到本地文件
+     * 从数据连接中读取数据并写入到本地文件。
+     * 启用原子上传时先写入同目录下的临时文件，完整接收并按策略刷盘后再重命名为目标文件，
+     * 传输中断时目标文件保持原样。
      * @param dataSocket 已建立的数据连接Socket
      * @param filePath 要写入的本地文件的路径
+     * @param digests 写入的同时需要计算的摘要，可以为null
+     * @return 写入文件的字节数
      * @throws IOException 如果读写文件或网络传输时发生IO错误
      */
-    public void writeFileToPath(Socket dataSocket, Path filePath) throws IOException {
-        try (InputStream dataIn = dataSocket.getInputStream();
-             OutputStream fileOut = Files.newOutputStream(filePath)) {
+    public long writeFileToPath(Socket dataSocket, Path filePath, ChecksumService.DigestSet digests) throws IOException {
+        UploadCommitter committer = UploadCommitter.getInstance();
+        Path writePath = filePath;
+        if (committer.isAtomic()) {
+            writePath = committer.stagingPathFor(filePath);
+        } else {
+            // 目标可能是去重存储中共享对象的硬链接，原地覆盖前先断开
+            ContentStore.getInstance().detach(filePath);
+        }
+
+        // 临时文件成功重命名为目标文件之前的任何失败（接收、复制权限、重命名）都要删除临时文件
+        boolean published = false;
+        try {
+            long totalBytes = receiveFile(dataSocket, writePath, digests);
+            if (writePath != filePath) {
+                DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(filePath);
+                try {
+                    committer.publish(writePath, filePath);
+                } finally {
+                    change.commit();
+                }
+            }
+            published = true;
+            return totalBytes;
+        } finally {
+            if (!published && writePath != filePath) {
+                discardStagingFile(writePath);
+            }
+        }
+    }
+
+    /**
+     * 删除未能发布的临时文件。重命名已完成（之后的目录刷盘失败）时临时文件已不存在，删除不产生任何影响；
+     * 删除失败只记录日志，不掩盖导致上传失败的原始异常，遗留文件由下次启动时的清理删除。
+     */
+    private static void discardStagingFile(Path writePath) {
+        DirectoryIndex.Change discarded = DirectoryIndex.getInstance().beginChange(writePath);
+        try {
+            Files.deleteIfExists(writePath);
+        } catch (IOException e) {
+            AuditLog.error("无法删除上传临时文件：" + writePath, e);
+        } finally {
+            discarded.commit();
+        }
+    }
 
-            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = dataIn.read(buffer)) != -1) {
-                fileOut.write(buffer, 0, bytesRead);
+    /**
+     * 把数据连接上的全部数据写入文件，并按提交策略刷盘
+     * @return 写入文件的字节数
+     */
+    private long receiveFile(Socket dataSocket, Path writePath, ChecksumService.DigestSet digests) throws IOException {
+        int bufferSize = tuneForTransfer(dataSocket, true);
+        SocketChannel socketChannel = dataSocket.getChannel();
+        long totalBytes = 0;
+        DirectoryIndex.Change created = DirectoryIndex.getInstance().beginChange(writePath);
+        try (FileChannel fileChannel = FileChannel.open(writePath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // 创建文件改变了目录的修改时间，通知目录索引
+            created.commit();
+            if (!asciiMode && socketChannel != null && !(dataSocket instanceof SSLSocket)) {
+                // 明文二进制上传：Socket通道读入直接缓冲区，再由文件通道写出，数据不经过Java堆
+                try (BufferPool.Lease lease = BufferPool.getInstance().acquire(bufferSize, true)) {
+                    ByteBuffer buffer = lease.buffer();
+                    int bytesRead;
+                    while ((bytesRead = socketChannel.read(buffer)) != -1) {
+                        totalBytes += bytesRead;
+                        session.addBytesIn(bytesRead);
+                        buffer.flip();
+                        if (digests != null) {
+                            digests.update(buffer);
+                        }
+                        while (buffer.hasRemaining()) {
+                            fileChannel.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+            } else {
+                try (BufferPool.Lease lease = BufferPool.getInstance().acquire(bufferSize, false);
+                     InputStream dataIn = openUploadStream(dataSocket)) {
+                    ByteBuffer buffer = lease.buffer();
+                    byte[] array = buffer.array();
+                    int bytesRead;
+                    while ((bytesRead = dataIn.read(array)) != -1) {
+                        totalBytes += bytesRead;
+                        if (digests != null) {
+                            digests.update(array, 0, bytesRead);
+                        }
+                        buffer.clear().limit(bytesRead);
+                        while (buffer.hasRemaining()) {
+                            fileChannel.write(buffer);
+                        }
+                    }
+                }
+            }
+            UploadCommitter.getInstance().force(fileChannel);
+        }
+        return totalBytes;
+    }
+
+    /**
+     * 从数据连接中读取数据，存入去重存储并把本地文件路径链接到共享的内容对象
+     * @param dataSocket 已建立的数据连接Socket
+     * @param filePath 用户可见的本地文件路径
+     * @return 写入文件的字节数
+     * @throws IOException 如果读写文件或网络传输时发生IO错误
+     */
+    public long writeFileToContentStore(Socket dataSocket, Path filePath) throws IOException {
+        int bufferSize = tuneForTransfer(dataSocket, true);
+        try (InputStream dataIn = openUploadStream(dataSocket)) {
+            return ContentStore.getInstance().store(dataIn, filePath, bufferSize);
+        }
+    }
+
+    /**
+     * 按传输方向设置数据连接的Socket选项，并根据协商后的Socket缓冲区大小确定每次读写的字节数，
+     * 避免用远小于Socket缓冲区的块进行大量细碎的系统调用。
+     * @param dataSocket 数据连接
+     * @param upload true表示上传（关心接收缓冲区），false表示下载（关心发送缓冲区）
+     * @return 本次传输使用的缓冲区大小
+     */
+    private int tuneForTransfer(Socket dataSocket, boolean upload) throws IOException {
+        if (!upload && SOCKET_SEND_BUFFER > 0) {
+            dataSocket.setSendBufferSize(SOCKET_SEND_BUFFER);
+        }
+        if (SOCKET_TRAFFIC_CLASS >= 0) {
+            dataSocket.setTrafficClass(SOCKET_TRAFFIC_CLASS);
+        }
+        int socketBuffer = upload ? dataSocket.getReceiveBufferSize() : dataSocket.getSendBufferSize();
+        return Math.max(MIN_TRANSFER_BUFFER_SIZE, socketBuffer);
+    }
+
+    /**
+     * 打开上传数据的输入流，ASCII类型时把网络行尾转换为本地行尾
+     */
+    private InputStream openUploadStream(Socket dataSocket) throws IOException {
+        InputStream dataIn = session.countInput(dataSocket.getInputStream());
+        return asciiMode ? AsciiLineTranslator.fromNetwork(dataIn) : dataIn;
+    }
+
+    /**
+     * 把整个目录树以tar归档的形式通过一个数据连接发送给客户端
+     * @param dataSocket 已建立的数据连接Socket
+     * @param directory 要归档的目录
+     * @param compress 是否使用gzip压缩
+     * @return 实际发送的字节数
+     * @throws IOException 如果读取文件或网络传输时发生IO错误
+     */
+    public long writeDirectoryArchive(Socket dataSocket, Path directory, boolean compress) throws IOException {
+        try (OutputStream dataOut = session.countOutput(dataSocket.getOutputStream())) {
+            return new TarArchiveStreamer().stream(directory, compress, dataOut);
+        }
+    }
+
+    /**
+     * 文件在下载过程中被截断（例如被其他程序改写），实际发送的字节数少于传输开始时的文件大小；
+     * 目录归档中的某个文件被截断时同样使用。客户端收到的数据不完整，不能回复226。
+     */
+    public static final class TruncatedTransferException extends EOFException {
+        private static final long serialVersionUID = 1L;
+        private final long transferredBytes;
+
+        TruncatedTransferException(long transferredBytes, long expectedBytes) {
+            this("文件在传输过程中被截断，已发送 " + transferredBytes + " / " + expectedBytes + " 字节", transferredBytes);
+        }
+
+        TruncatedTransferException(String message, long transferredBytes) {
+            super(message);
+            this.transferredBytes = transferredBytes;
+        }
+
+        /**
+         * @return 截断前已发送的字节数
+         */
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+    }
+
+    /**
+     * 被动模式后台任务接受的连接。任务被放弃之后接受到的连接会被任务自己关闭，
+     * 放弃之前已接受的连接由放弃方关闭。
+     */
+    private static final class PendingPassiveConnection {
+        private Socket socket;
+        private boolean abandoned;
+
+        synchronized boolean attach(Socket accepted) {
+            if (abandoned) {
+                return false;
+            }
+            socket = accepted;
+            return true;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 连接已经断开
+                }
             }
         }
     }
@@ -1,21 +1,63 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class FtpServer {
     // 定义FTP控制连接的默认端口号
-    private static final int CONTROL_PORT = 21;
+    private static final int DEFAULT_CONTROL_PORT = 21;
     // 线程池，用于并发处理多个客户端连接，以避免为每个客户端都创建一个新线程的开销
     private ExecutorService clientThreadPool;
     // 初始化线程池大小
     private static final int DEFAULT_THREAD_POOL_SIZE = 10;
 
+    // 控制连接监听端口
+    private final int controlPort;
+    // 接受连接的线程数量，每个线程持有一个独立的监听Socket
+    private final int acceptorCount;
+    // 监听Socket的连接等待队列长度
+    private final int acceptBacklog;
+    // 是否在监听Socket上启用SO_REUSEPORT，允许新进程在旧进程关闭前绑定同一端口
+    private final boolean reusePort;
+    // 是否使用从父进程（例如systemd套接字激活）继承的监听Socket
+    private final boolean inheritChannel;
+    // 平滑关闭时等待正在进行的传输完成的最长时间
+    private final long drainTimeoutMillis;
+
+    // 已绑定的监听Socket
+    private final List<ServerSocket> listeners = new ArrayList<>();
+    // 是否已进入平滑关闭阶段
+    private volatile boolean draining;
+    // 保证关闭流程只执行一次
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
     /**
      * 构造函数
      */
     public FtpServer() {
-        clientThreadPool = Executors.newFixedThreadPool(DEFAULT_THREAD_POOL_SIZE);
+        ServerConfig config = ServerConfig.getInstance();
+        this.controlPort = config.getInt("server.port", DEFAULT_CONTROL_PORT);
+        this.acceptorCount = Math.max(1, config.getInt("server.acceptors", 1));
+        this.acceptBacklog = config.getInt("server.backlog", 50);
+        this.reusePort = config.getBoolean("server.reuseport", acceptorCount > 1);
+        this.inheritChannel = config.getBoolean("server.inherit.channel", false);
+        this.drainTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getLong("server.drain.timeout.seconds", 300));
+        clientThreadPool = Executors.newFixedThreadPool(config.getInt("server.threads", DEFAULT_THREAD_POOL_SIZE));
     }
 
     /**
@@ -27,19 +69,192 @@ public class FtpServer {
     }
 
     private void start() {
-        try (ServerSocket serverSocket = new ServerSocket(CONTROL_PORT)) {
-            while (true) {
-                // 一直等待，直到有客户端请求连接
-                Socket clientSocket = serverSocket.accept();
+        // 收到SIGTERM/SIGINT时平滑关闭，而不是直接中断正在进行的传输
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "ftp-shutdown"));
 
-                // 为每个新连接的客户端创建一个 FtpClientHandler 实例
-                 clientThreadPool.submit(new FtpClientHandler(clientSocket));
+        List<Thread> acceptors = new ArrayList<>();
+        try {
+            // 要求了FTPS却无法加载密钥库时不启动，避免静默退化为明文服务
+            if (ServerConfig.getInstance().getBoolean("tls.enabled", false) && TlsContext.getInstance() == null) {
+                System.err.println("已启用FTPS但无法加载TLS密钥库，服务器未启动");
+                return;
+            }
+            // 会话开始前清理上次运行遗留的未引用内容对象
+            ContentStore.getInstance().purgeUnreferenced();
+            ContentStore.getInstance().checkLinkSupport(PathResolver.configuredRoots());
+            // 上次运行中断的上传留下的临时文件在后台清理
+            UploadCommitter.getInstance().sweepStaleStagingFiles(PathResolver.configuredRoots());
+            registerManagementBeans();
+            openListeners();
+            for (int i = 0; i < acceptorCount; i++) {
+                // 不支持SO_REUSEPORT时只有一个监听Socket，由所有接受线程共享
+                ServerSocket listener = listeners.get(i % listeners.size());
+                Thread acceptor = new Thread(() -> acceptLoop(listener), "ftp-acceptor-" + i);
+                acceptors.add(acceptor);
+                acceptor.start();
+            }
+            AuditLog.info("FTP Server started on port " + controlPort + "，接受线程 " + acceptorCount + " 个，监听Socket " + listeners.size() + " 个");
+            System.out.println("FTP Server started on port " + controlPort);
+
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            AuditLog.error("控制端口监听失败", e);
         } finally {
-            // 关闭线程池以释放资源
-            clientThreadPool.shutdown();
+            // 监听Socket关闭后（或启动失败时）执行关闭流程以释放资源
+            stop();
+        }
+    }
+
+    /**
+     * 平滑关闭服务器：
+     * 1. 关闭监听Socket，不再接受新会话；
+     * 2. 空闲会话立即收到421并断开，正在执行命令的会话在命令结束后断开，期间的新命令都回复421；
+     * 3. 在期限内等待正在进行的传输完成，超时后强制断开剩余会话。
+     * 可以重复调用，只有第一次调用生效。
+     */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        draining = true;
+        SessionRegistry registry = SessionRegistry.getInstance();
+        AuditLog.info("开始平滑关闭，活动会话 " + registry.getSessionCount() + " 个，最长等待 " + drainTimeoutMillis + " 毫秒");
+
+        synchronized (listeners) {
+            for (ServerSocket listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException e) {
+                    AuditLog.error("关闭监听Socket失败", e);
+                }
+            }
+        }
+        registry.closeIdleSessions();
+
+        clientThreadPool.shutdown();
+        try {
+            if (!clientThreadPool.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                AuditLog.info("关闭期限已到，强制断开剩余会话 " + registry.getSessionCount() + " 个");
+                registry.forceCloseAll();
+                clientThreadPool.shutdownNow();
+                clientThreadPool.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        AuditLog.info(BufferPool.getInstance().describe());
+        AuditLog.info("FTP Server stopped");
+        AuditLog.shutdown();
+    }
+
+    /**
+     * 把会话登记表、缓冲区池和审计日志统计注册到平台MBeanServer，可以用jconsole等JMX工具查看会话、缓冲区和审计队列统计、
+     * 调整慢速客户端阈值或断开指定会话。远程访问需要按JVM的 com.sun.management.jmxremote.* 参数另行开启。
+     */
+    private void registerManagementBeans() {
+        if (!ServerConfig.getInstance().getBoolean("jmx.enabled", true)) {
+            return;
+        }
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(SessionRegistry.getInstance(), new ObjectName("ftpserver:type=Sessions"));
+            mbeanServer.registerMBean(BufferPool.getInstance(), new ObjectName("ftpserver:type=BufferPool"));
+            mbeanServer.registerMBean(new StandardMBean(AuditLog.statistics(), AuditLogMBean.class),
+                    new ObjectName("ftpserver:type=AuditLog"));
+        } catch (JMException e) {
+            AuditLog.error("注册JMX管理接口失败", e);
+        }
+    }
+
+    /**
+     * @return 服务器是否正在平滑关闭
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * 打开控制端口的监听Socket。
+     * 启用继承时优先使用父进程传入的监听Socket，新旧进程之间无需重新绑定端口；
+     * 多个接受线程且平台支持SO_REUSEPORT时，为每个线程各绑定一个监听Socket，由内核把新连接分散到它们上面；
+     * 否则只绑定一个监听Socket。
+     * @throws IOException 如果端口绑定失败
+     */
+    private void openListeners() throws IOException {
+        synchronized (listeners) {
+            if (inheritChannel) {
+                Channel inherited = System.inheritedChannel();
+                if (inherited instanceof ServerSocketChannel) {
+                    listeners.add(((ServerSocketChannel) inherited).socket());
+                    AuditLog.info("使用继承的监听Socket " + ((ServerSocketChannel) inherited).getLocalAddress());
+                    return;
+                }
+                AuditLog.info("未继承到监听Socket，改为自行绑定端口 " + controlPort);
+            }
+
+            int socketCount = acceptorCount;
+            try {
+                for (int i = 0; i < socketCount; i++) {
+                    ServerSocket listener = new ServerSocket();
+                    listeners.add(listener);
+                    if (reusePort && listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    } else {
+                        socketCount = 1;
+                    }
+                    listener.setReuseAddress(true);
+                    listener.bind(new InetSocketAddress(controlPort), acceptBacklog);
+                }
+            } catch (IOException e) {
+                for (ServerSocket listener : listeners) {
+                    listener.close();
+                }
+                listeners.clear();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 接受线程主循环：只负责接受连接并立即交给线程池，会话的初始化在工作线程中完成，
+     * 这样接受线程可以尽快回到 accept() 上。
+     * @param listener 该线程使用的监听Socket
+     */
+    private void acceptLoop(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            Socket clientSocket;
+            try {
+                // 一直等待，直到有客户端请求连接
+                clientSocket = listener.accept();
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    AuditLog.error("接受客户端连接失败", e);
+                    // 例如文件描述符耗尽时，短暂退避以免空转刷屏
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            try {
+                // 为每个新连接的客户端创建一个 FtpClientHandler 实例
+                clientThreadPool.submit(() -> new FtpClientHandler(clientSocket, this).run());
+            } catch (RejectedExecutionException e) {
+                // 关闭流程已开始，线程池不再接收新会话
+                try {
+                    clientSocket.close();
+                } catch (IOException ex) {
+                    AuditLog.error("关闭客户端连接失败", ex);
+                }
+                return;
+            }
         }
     }
-}
\ No newline at end of file
+}
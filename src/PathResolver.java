@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话级的路径解析器。
+ * 把客户端提供的路径解析为服务器上的绝对路径，并把用户限制在自己的根目录内：
+ * 以"/"开头的路径相对于根目录，".."不能越过根目录，符号链接解析后的真实路径也必须位于根目录内。
+ * 解析结果（包括真实路径检查）在会话内缓存一小段时间，修改命令执行后清空。
+ */
+public class PathResolver {
+    // 每个会话最多缓存的解析结果数量
+    private static final int MAX_RESOLVED_ENTRIES = 256;
+    // 服务器自身的文件和目录（配置文件、用户凭据、TLS密钥库和审计日志目录），客户端不能访问，文件列表中也不显示。
+    // 同时保存规范化路径和解析符号链接后的真实路径
+    private static final List<Path> SERVER_FILES = serverFiles();
+
+    // 用户根目录（规范化的绝对路径）
+    private final Path root;
+    // 用户根目录解析符号链接后的真实路径
+    private final Path realRoot;
+    // 解析结果的有效期
+    private final long ttlNanos;
+    // 会话内的解析结果缓存，按访问顺序淘汰
+    private final Map<String, Resolved> resolvedPaths = new LinkedHashMap<String, Resolved>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+            return size() > MAX_RESOLVED_ENTRIES;
+        }
+    };
+
+    /**
+     * 构造函数
+     * @param root 用户根目录
+     */
+    public PathResolver(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        Path resolvedRoot;
+        try {
+            resolvedRoot = this.root.toRealPath();
+        } catch (IOException e) {
+            AuditLog.error("无法解析用户根目录：" + this.root, e);
+            resolvedRoot = this.root;
+        }
+        this.realRoot = resolvedRoot;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getInstance().getLong("path.cache.ttl.ms", 1000));
+    }
+
+    /**
+     * 获取用户的根目录：优先使用 ftp.root.用户名，其次是 ftp.root，默认为服务器的工作目录。
+     * @param username 用户名，未登录时为null
+     * @return 用户根目录
+     */
+    public static Path rootFor(String username) {
+        ServerConfig config = ServerConfig.getInstance();
+        String defaultRoot = config.getString("ftp.root", System.getProperty("user.dir"));
+        String userRoot = username == null ? defaultRoot : config.getString("ftp.root." + username, defaultRoot);
+        return Paths.get(userRoot);
+    }
+
+    /**
+     * 列出配置中出现的所有根目录：默认根目录以及所有 ftp.root.用户名
+     * @return 规范化的绝对路径
+     */
+    public static Set<Path> configuredRoots() {
+        ServerConfig config = ServerConfig.getInstance();
+        Set<Path> roots = new LinkedHashSet<>();
+        roots.add(rootFor(null).toAbsolutePath().normalize());
+        for (String key : config.keysWithPrefix("ftp.root.")) {
+            String userRoot = config.getString(key, null);
+            if (userRoot != null) {
+                roots.add(Paths.get(userRoot).toAbsolutePath().normalize());
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * 判断路径是否为服务器自身的文件或位于服务器自身的目录内
+     * @param path 需要判断的路径
+     * @return 如果客户端不能访问该路径则返回true
+     */
+    public static boolean isServerFile(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        for (Path serverFile : SERVER_FILES) {
+            if (normalized.startsWith(serverFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 服务器自身的文件和目录，包括规范化路径和解析符号链接后的真实路径
+     */
+    public static List<Path> getServerFiles() {
+        return SERVER_FILES;
+    }
+
+    private static List<Path> serverFiles() {
+        List<Path> files = new ArrayList<>();
+        files.add(ServerConfig.getConfigFile());
+        files.add(UserAuthenticator.getUsersFile());
+        files.add(AuditLog.getLogDirectory());
+        Path keystore = TlsContext.getKeystoreFile();
+        if (keystore != null) {
+            files.add(keystore);
+        }
+        List<Path> result = new ArrayList<>();
+        for (Path file : files) {
+            Path normalized = file.toAbsolutePath().normalize();
+            result.add(normalized);
+            Path real = realPathOf(normalized);
+            if (real != null && !real.equals(normalized)) {
+                result.add(real);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * 解析路径的真实路径；路径尚不存在时解析其最近的已存在上级目录，再接上其余部分
+     * @return 真实路径，无法解析时返回null
+     */
+    private static Path realPathOf(Path path) {
+        Path existing = path;
+        while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return null;
+        }
+        try {
+            return existing.toRealPath().resolve(existing.relativize(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 用户根目录
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * 把客户端提供的路径解析为服务器上的绝对路径。
+     * @param currentDirectory 会话的当前工作目录
+     * @param argument 客户端提供的路径，可以是绝对（虚拟）路径或相对路径
+     * @return 解析后的路径，如果路径超出用户根目录、位于去重存储内、是上传临时文件或服务器自身的文件则返回null
+     */
+    public Path resolve(Path currentDirectory, String argument) {
+        String key = currentDirectory + "\u0000" + argument;
+        long now = System.nanoTime();
+        Resolved cached = resolvedPaths.get(key);
+        if (cached != null && now - cached.resolvedAt < ttlNanos) {
+            return cached.path;
+        }
+
+        Path candidate;
+        if (argument.startsWith("/") || argument.startsWith("\\")) {
+            candidate = root.resolve(argument.substring(1)).normalize();
+        } else {
+            candidate = currentDirectory.resolve(argument).normalize();
+        }
+        if (!candidate.startsWith(root) || !isConfined(candidate) || ContentStore.getInstance().isInternalPath(candidate)
+                || UploadCommitter.isStagingFile(candidate) || isServerFile(candidate)) {
+            return null;
+        }
+
+        resolvedPaths.put(key, new Resolved(candidate, now));
+        return candidate;
+    }
+
+    /**
+     * 读取文件属性（经过全局属性缓存）。
+     * @param path 已解析的路径
+     * @return 文件属性，文件不存在时返回null
+     * @throws IOException 如果读取属性时发生IO错误
+     */
+    public BasicFileAttributes attributes(Path path) throws IOException {
+        return FileAttributeCache.getInstance().get(path);
+    }
+
+    /**
+     * 文件被创建、写入或删除后调用。目录的列表索引由 DirectoryIndex.beginChange 单独维护。
+     * @param path 被修改的路径
+     */
+    public void invalidate(Path path) {
+        resolvedPaths.clear();
+        FileAttributeCache.getInstance().invalidate(path);
+    }
+
+    /**
+     * 目录被删除或重命名后调用。
+     * @param path 被修改的目录
+     */
+    public void invalidateTree(Path path) {
+        resolvedPaths.clear();
+        FileAttributeCache.getInstance().invalidateTree(path);
+    }
+
+    /**
+     * 把服务器上的路径转换为客户端看到的虚拟路径，根目录显示为"/"。
+     * @param path 位于用户根目录内的路径
+     * @return 虚拟路径
+     */
+    public String toVirtualPath(Path path) {
+        String relative = root.relativize(path).toString().replace("\\", "/");
+        return "/" + relative;
+    }
+
+    /**
+     * 检查路径解析符号链接后是否仍位于根目录内，并且不指向服务器自身的文件。
+     * 路径本身不存在时（例如即将创建的文件），检查其最近的已存在上级目录。
+     */
+    private boolean isConfined(Path candidate) {
+        Path existing = candidate;
+        while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return false;
+        }
+        try {
+            Path real = existing.toRealPath();
+            return real.startsWith(realRoot) && !isServerFile(real);
+        } catch (IOException e) {
+            // 例如指向不存在目标的符号链接
+            return false;
+        }
+    }
+
+    /**
+     * 解析结果缓存条目
+     */
+    private static final class Resolved {
+        final Path path;
+        final long resolvedAt;
+
+        Resolved(Path path, long resolvedAt) {
+            this.path = path;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
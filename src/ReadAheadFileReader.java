@@ -0,0 +1,145 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 带预读的文件读取器。
+ * 使用 AsynchronousFileChannel 同时发出若干个窗口的读请求，调用方发送当前窗口时，
+ * 后续窗口已经在从磁盘读入，磁盘与网络的等待时间相互重叠。
+ * 用于无法使用零拷贝（sendfile）的下载路径，例如TLS加密或需要转换内容的传输。
+ * 窗口缓冲区从全局缓冲区池租用，关闭读取器时归还。
+ */
+public class ReadAheadFileReader implements Closeable {
+    private final AsynchronousFileChannel channel;
+    private final int windowSize;
+    // 打开文件时的大小，读取到该位置为止
+    private final long size;
+    // 已发出、尚未被取走的读请求，按文件位置排列
+    private final ArrayDeque<PendingRead> pendingReads = new ArrayDeque<>();
+    // 下一个读请求的文件位置
+    private long nextReadPosition;
+    // 上一次交给调用方的窗口，调用方下一次调用时回收
+    private PendingRead lastReturned;
+    // 从缓冲区池租用的窗口，关闭时归还
+    private final List<BufferPool.Lease> leases = new ArrayList<>();
+
+    /**
+     * 构造函数，立即发出最多 prefetchDepth 个窗口的读请求。
+     * @param file 要读取的文件
+     * @param windowSize 每个窗口的大小（字节）
+     * @param prefetchDepth 同时在途的读请求数量
+     * @throws IOException 如果无法打开文件
+     */
+    public ReadAheadFileReader(Path file, int windowSize, int prefetchDepth) throws IOException {
+        this.channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+        this.windowSize = windowSize;
+        this.size = channel.size();
+        long windows = (size + windowSize - 1) / windowSize;
+        for (int i = 0; i < Math.min(prefetchDepth, windows); i++) {
+            BufferPool.Lease lease = BufferPool.getInstance().acquire(windowSize, false);
+            leases.add(lease);
+            issueRead(lease.buffer());
+        }
+    }
+
+    /**
+     * @return 打开文件时的大小，读取器最多读取到该位置
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 取得下一个窗口的数据。返回的缓冲区在下一次调用本方法之前有效。
+     * @return 已切换为读模式的缓冲区，文件读完时返回null
+     * @throws IOException 如果读取文件失败
+     */
+    public ByteBuffer next() throws IOException {
+        if (lastReturned != null) {
+            // 调用方已发送完上一个窗口，复用它的缓冲区继续预读
+            ByteBuffer recycled = lastReturned.buffer;
+            lastReturned = null;
+            if (nextReadPosition < size) {
+                issueRead(recycled);
+            }
+        }
+
+        PendingRead read = pendingReads.poll();
+        if (read == null) {
+            return null;
+        }
+        int expected = read.buffer.remaining();
+        int bytesRead = await(read.result);
+        // 异步读取可能只读到一部分，补齐剩余部分以保持窗口连续
+        while (bytesRead >= 0 && read.buffer.hasRemaining()) {
+            int more = await(channel.read(read.buffer, read.position + (expected - read.buffer.remaining())));
+            if (more < 0) {
+                break;
+            }
+        }
+        read.buffer.flip();
+        if (!read.buffer.hasRemaining()) {
+            // 文件在传输过程中被截断
+            return null;
+        }
+        lastReturned = read;
+        return read.buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // 通道关闭后在途的读请求不再写入缓冲区，可以安全归还
+            for (BufferPool.Lease lease : leases) {
+                lease.close();
+            }
+        }
+    }
+
+    private void issueRead(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.limit((int) Math.min(Math.min(windowSize, buffer.capacity()), size - nextReadPosition));
+        pendingReads.add(new PendingRead(buffer, nextReadPosition, channel.read(buffer, nextReadPosition)));
+        nextReadPosition += buffer.limit();
+    }
+
+    private static int await(Future<Integer> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待文件读取时被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("读取文件失败", e.getCause());
+        }
+    }
+
+    /**
+     * 一个在途的读请求
+     */
+    private static final class PendingRead {
+        final ByteBuffer buffer;
+        final long position;
+        final Future<Integer> result;
+
+        PendingRead(ByteBuffer buffer, long position, Future<Integer> result) {
+            this.buffer = buffer;
+            this.position = position;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class ServerConfig {
+    // 全局唯一的配置实例
+    private static final ServerConfig INSTANCE = new ServerConfig();
+
+    private Properties settings;
+
+    /**
+     * 构造函数
+     */
+    private ServerConfig() {
+        settings = new Properties();
+        loadSettings();
+    }
+
+    /**
+     * 获取全局配置实例
+     * @return 服务器配置
+     */
+    public static ServerConfig getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 获取服务器配置文件的位置：工作目录下的 server.properties
+     * @return 配置文件路径
+     */
+    public static Path getConfigFile() {
+        return Paths.get(System.getProperty("user.dir"), "server.properties");
+    }
+
+    /**
+     * 从外部配置文件加载服务器参数，文件不存在时全部使用默认值
+     */
+    private void loadSettings() {
+        Path configFilePath = getConfigFile();
+        if (!Files.exists(configFilePath)) {
+            return;
+        }
+
+        try (InputStream input = Files.newInputStream(configFilePath);
+             InputStreamReader reader = new InputStreamReader(input, "UTF-8")) {
+            settings.load(reader);
+        } catch (IOException e) {
+            // 此时审计日志尚未可用（它本身依赖配置），只能直接输出到标准错误
+            System.err.println("无法加载 server.properties：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 读取字符串配置项。同名的JVM系统属性（-Dkey=value）优先于配置文件。
+     * @param key 配置项名称
+     * @param defaultValue 未配置时使用的默认值
+     * @return 配置值
+     */
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = settings.getProperty(key);
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * 列出以指定前缀开头的配置项名称，包括配置文件和JVM系统属性中的
+     * @param prefix 名称前缀
+     * @return 配置项名称
+     */
+    public Set<String> keysWithPrefix(String prefix) {
+        Set<String> keys = new TreeSet<>();
+        for (String key : settings.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 读取整数配置项，格式错误时使用默认值
+     * @param key 配置项名称
+     * @param defaultValue 未配置时使用的默认值
+     * @return 配置值
+     */
+    public int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 读取长整数配置项，格式错误时使用默认值
+     * @param key 配置项名称
+     * @param defaultValue 未配置时使用的默认值
+     * @return 配置值
+     */
+    public long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 读取布尔配置项
+     * @param key 配置项名称
+     * @param defaultValue 未配置时使用的默认值
+     * @return 配置值
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 活动会话登记表，服务器中唯一记录所有会话的地方，平滑关闭时也通过它断开会话。
+ * 记录每个会话的状态（空闲 / 执行命令 / 传输数据）、当前命令、收发字节数、当前传输速率以及最后一次活动的时间，
+ * 可以通过 SITE WHO 命令和JMX查询，用来找出长时间空闲或传输缓慢却占用线程池的客户端。
+ * 后台监视线程按固定间隔采样每个会话的字节数计算速率；配置了最低速率时，
+ * 传输速率持续低于该值超过宽限时间的会话会被断开，释放其占用的线程。
+ */
+public final class SessionRegistry implements SessionRegistryMBean {
+    // 会话状态：等待命令
+    public static final int STATE_IDLE = 0;
+    // 会话状态：正在执行命令
+    public static final int STATE_COMMAND = 1;
+    // 会话状态：正在通过数据连接传输
+    public static final int STATE_TRANSFER = 2;
+
+    private static final String[] STATE_NAMES = {"idle", "command", "transfer"};
+    // 显示的命令最多保留的字符数
+    private static final int MAX_COMMAND_LENGTH = 80;
+
+    // 全局唯一的会话登记表，必须在上面的常量之后初始化
+    private static final SessionRegistry INSTANCE = new SessionRegistry();
+
+    // 活动会话，按会话编号索引
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // 会话编号序列
+    private final AtomicLong nextId = new AtomicLong();
+    // 已结束会话的累计收发字节数
+    private final AtomicLong closedBytesIn = new AtomicLong();
+    private final AtomicLong closedBytesOut = new AtomicLong();
+    // 因速率过低被断开的会话数量
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    // 传输速率低于该值（字节/秒）的会话视为慢速客户端，0表示不断开
+    private volatile long slowMinRate;
+    // 慢速状态持续多久之后断开
+    private volatile long slowGraceNanos;
+
+    /**
+     * 构造函数
+     */
+    private SessionRegistry() {
+        ServerConfig config = ServerConfig.getInstance();
+        long intervalSeconds = Math.max(1, config.getLong("session.monitor.interval.seconds", 5));
+        this.slowMinRate = Math.max(0, config.getLong("session.slow.min.rate", 0));
+        this.slowGraceNanos = TimeUnit.SECONDS.toNanos(Math.max(0, config.getLong("session.slow.grace.seconds", 60)));
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ftp-session-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleWithFixedDelay(this::sample, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取全局会话登记表
+     * @return 会话登记表
+     */
+    public static SessionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 登记一个新会话
+     * @param handler 会话的处理器，断开慢速客户端时使用
+     * @param remoteHost 客户端地址
+     * @return 会话记录
+     */
+    public Session open(FtpClientHandler handler, String remoteHost) {
+        Session session = new Session(nextId.incrementAndGet(), handler, remoteHost);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * 注销一个已结束的会话，其字节数计入累计值
+     * @param session 会话记录
+     */
+    public void close(Session session) {
+        if (sessions.remove(session.id) != null) {
+            closedBytesIn.addAndGet(session.bytesIn.get());
+            closedBytesOut.addAndGet(session.bytesOut.get());
+        }
+    }
+
+    /**
+     * @return 所有活动会话，按编号排序
+     */
+    public List<Session> list() {
+        List<Session> result = new ArrayList<>(sessions.values());
+        result.sort((a, b) -> Long.compare(a.id, b.id));
+        return result;
+    }
+
+    /**
+     * 平滑关闭开始时调用：正在等待命令的会话立即收到421并断开，正在执行命令的会话在命令结束后自行断开
+     */
+    public void closeIdleSessions() {
+        for (Session session : sessions.values()) {
+            session.handler.closeIfIdle();
+        }
+    }
+
+    /**
+     * 关闭期限已到时调用：强制断开所有剩余的会话
+     */
+    public void forceCloseAll() {
+        for (Session session : sessions.values()) {
+            session.handler.forceClose();
+        }
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getTransferCount() {
+        return countInState(STATE_TRANSFER);
+    }
+
+    @Override
+    public int getIdleCount() {
+        return countInState(STATE_IDLE);
+    }
+
+    @Override
+    public long getTotalBytesIn() {
+        long total = closedBytesIn.get();
+        for (Session session : sessions.values()) {
+            total += session.bytesIn.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalBytesOut() {
+        long total = closedBytesOut.get();
+        for (Session session : sessions.values()) {
+            total += session.bytesOut.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @Override
+    public long getSlowMinRate() {
+        return slowMinRate;
+    }
+
+    @Override
+    public void setSlowMinRate(long bytesPerSecond) {
+        this.slowMinRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getSlowGraceSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(slowGraceNanos);
+    }
+
+    @Override
+    public void setSlowGraceSeconds(long seconds) {
+        this.slowGraceNanos = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+    }
+
+    @Override
+    public String[] getSessions() {
+        List<Session> current = list();
+        String[] lines = new String[current.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = current.get(i).describe();
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean evictSession(long id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        AuditLog.info("管理员断开会话 " + session.describe());
+        session.handler.evict("会话已被管理员断开。");
+        return true;
+    }
+
+    private int countInState(int state) {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            if (session.state == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 监视线程定期执行：计算每个会话在上一个间隔内的传输速率，并断开持续低于最低速率的会话
+     */
+    private void sample() {
+        try {
+            long now = System.nanoTime();
+            for (Session session : sessions.values()) {
+                if (session.sample(now) && slowMinRate > 0) {
+                    checkSlow(session, now);
+                }
+            }
+        } catch (RuntimeException e) {
+            // 异常会使定时任务停止，记录后继续下一次采样
+            AuditLog.error("会话采样失败", e);
+        }
+    }
+
+    private void checkSlow(Session session, long now) {
+        if (session.state != STATE_TRANSFER || session.rate >= slowMinRate) {
+            session.slowSinceNanos = 0;
+            return;
+        }
+        if (session.slowSinceNanos == 0) {
+            session.slowSinceNanos = now;
+        } else if (now - session.slowSinceNanos >= slowGraceNanos) {
+            session.slowSinceNanos = 0;
+            evictedCount.incrementAndGet();
+            AuditLog.info("传输速率持续低于 " + slowMinRate + " 字节/秒，断开慢速会话 " + session.describe());
+            session.handler.evict("传输速率过低，会话已断开。");
+        }
+    }
+
+    /**
+     * 一个会话的运行状况。计数由会话线程更新，由监视线程和查询方读取。
+     */
+    public static final class Session {
+        private final long id;
+        private final FtpClientHandler handler;
+        private final String remoteHost;
+        private final long connectedAtMillis = System.currentTimeMillis();
+
+        private volatile String username;
+        private volatile int state = STATE_IDLE;
+        private volatile String command = "";
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private volatile long lastActivityNanos = System.nanoTime();
+
+        // 以下字段只由监视线程修改
+        private long lastSampleNanos = System.nanoTime();
+        private long lastSampleBytes;
+        // 上一个采样间隔内的速率（字节/秒）
+        private volatile long rate;
+        // 开始低于最低速率的时间，0表示当前不慢
+        private long slowSinceNanos;
+
+        private Session(long id, FtpClientHandler handler, String remoteHost) {
+            this.id = id;
+            this.handler = handler;
+            this.remoteHost = remoteHost;
+        }
+
+        /**
+         * @return 会话编号
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return 已登录的用户名，未登录时为null
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * 用户登录成功后调用
+         * @param username 用户名
+         */
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        /**
+         * 开始执行一条命令。PASS命令的参数不会被记录。
+         * @param commandLine 客户端发送的命令行
+         */
+        public void commandStarted(String commandLine) {
+            String shown = commandLine;
+            if (shown.regionMatches(true, 0, "PASS", 0, 4)) {
+                shown = "PASS ****";
+            } else if (shown.length() > MAX_COMMAND_LENGTH) {
+                shown = shown.substring(0, MAX_COMMAND_LENGTH) + "...";
+            }
+            command = shown;
+            state = STATE_COMMAND;
+            lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 当前命令的数据连接已建立，开始传输
+         */
+        public void transferStarted() {
+            state = STATE_TRANSFER;
+            lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 当前命令执行完毕，会话回到空闲状态
+         */
+        public void commandFinished() {
+            state = STATE_IDLE;
+            lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 记录从客户端收到的数据
+         * @param count 字节数
+         */
+        public void addBytesIn(long count) {
+            bytesIn.addAndGet(count);
+            lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 记录发送给客户端的数据
+         * @param count 字节数
+         */
+        public void addBytesOut(long count) {
+            bytesOut.addAndGet(count);
+            lastActivityNanos = System.nanoTime();
+        }
+
+        /**
+         * 包装数据连接的输入流，读到的字节计入本会话
+         * @param in 输入流
+         * @return 计数的输入流
+         */
+        public InputStream countInput(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        addBytesIn(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        addBytesIn(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * 包装数据连接的输出流，写出的字节计入本会话
+         * @param out 输出流
+         * @return 计数的输出流
+         */
+        public OutputStream countOutput(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    addBytesOut(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    addBytesOut(len);
+                }
+            };
+        }
+
+        /**
+         * 更新速率
+         * @return 如果本次采样覆盖了完整的间隔（可以用于判断慢速）则返回true
+         */
+        private boolean sample(long now) {
+            long bytes = bytesIn.get() + bytesOut.get();
+            long elapsed = now - lastSampleNanos;
+            if (elapsed <= 0) {
+                return false;
+            }
+            rate = (bytes - lastSampleBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            lastSampleBytes = bytes;
+            lastSampleNanos = now;
+            return true;
+        }
+
+        /**
+         * @return 一行文字描述，用于 SITE WHO、JMX和日志；空闲时cmd为最后执行的命令
+         */
+        public String describe() {
+            long now = System.nanoTime();
+            return String.format("#%d %s@%s %s up=%ds idle=%ds in=%d out=%d rate=%d/s cmd=%s",
+                    id, username == null ? "-" : username, remoteHost, STATE_NAMES[state],
+                    (System.currentTimeMillis() - connectedAtMillis) / 1000,
+                    TimeUnit.NANOSECONDS.toSeconds(now - lastActivityNanos),
+                    bytesIn.get(), bytesOut.get(), rate, command.isEmpty() ? "-" : command);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * 会话登记表的JMX管理接口，注册名为 ftpserver:type=Sessions。
+ */
+public interface SessionRegistryMBean {
+    /**
+     * @return 活动会话数量
+     */
+    int getSessionCount();
+
+    /**
+     * @return 正在传输数据的会话数量
+     */
+    int getTransferCount();
+
+    /**
+     * @return 正在等待命令的会话数量
+     */
+    int getIdleCount();
+
+    /**
+     * @return 服务器启动以来从客户端收到的数据连接字节数
+     */
+    long getTotalBytesIn();
+
+    /**
+     * @return 服务器启动以来发送给客户端的数据连接字节数
+     */
+    long getTotalBytesOut();
+
+    /**
+     * @return 因传输速率过低被断开的会话数量
+     */
+    long getEvictedCount();
+
+    /**
+     * @return 慢速客户端的最低传输速率（字节/秒），0表示不断开
+     */
+    long getSlowMinRate();
+
+    /**
+     * @param bytesPerSecond 慢速客户端的最低传输速率（字节/秒），0表示不断开
+     */
+    void setSlowMinRate(long bytesPerSecond);
+
+    /**
+     * @return 速率持续低于最低值多少秒后断开
+     */
+    long getSlowGraceSeconds();
+
+    /**
+     * @param seconds 速率持续低于最低值多少秒后断开
+     */
+    void setSlowGraceSeconds(long seconds);
+
+    /**
+     * @return 每个活动会话一行的描述，格式与 SITE WHO 相同
+     */
+    String[] getSessions();
+
+    /**
+     * 断开指定的会话
+     * @param id 会话编号（SITE WHO 中 # 之后的数字）
+     * @return 如果会话存在则返回true
+     */
+    boolean evictSession(long id);
+}
@@ -0,0 +1,430 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 把整个目录树以tar（可选gzip压缩）格式流式发送。
+ * 读取线程遍历目录、读取文件并生成归档数据，放入有界的数据块队列；
+ * 调用线程只负责把数据块写入数据连接。读取线程始终领先若干数据块，
+ * 磁盘读取与网络发送相互重叠，整个归档从不完整地驻留在内存中。
+ * 数据块和文件读缓冲区都从 {@link BufferPool} 租用，归档结束后归还。
+ */
+public class TarArchiveStreamer {
+    // tar格式的块大小
+    private static final int BLOCK_SIZE = 512;
+    // ustar头部size字段能表示的最大值（11位八进制）
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    // 名称超过100字节时使用的GNU长文件名条目
+    private static final String LONG_LINK_NAME = "././@LongLink";
+
+    // 所有归档共用的读取线程池
+    private static final ExecutorService READER_POOL = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-archive-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 每个数据块的大小
+    private final int chunkSize;
+    // 读取线程最多领先的数据块数量
+    private final int prefetchChunks;
+
+    /**
+     * 构造函数
+     */
+    public TarArchiveStreamer() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.chunkSize = Math.max(BLOCK_SIZE, config.getInt("archive.chunk.size", 64 * 1024));
+        this.prefetchChunks = Math.max(1, config.getInt("archive.prefetch.chunks", 16));
+    }
+
+    /**
+     * 根据客户端请求的文件名判断是否为目录归档请求，例如 "photos.tar"、"photos.tar.gz" 或 "photos.tgz"。
+     * @param requestedPath 请求的（不存在的）文件路径
+     * @return 对应的已存在目录，如果不是归档请求则返回null
+     */
+    public static Path archivedDirectory(Path requestedPath) {
+        String name = requestedPath.getFileName() == null ? "" : requestedPath.getFileName().toString();
+        String directoryName = null;
+        for (String suffix : new String[] {".tar.gz", ".tgz", ".tar"}) {
+            if (name.length() > suffix.length() && name.toLowerCase().endsWith(suffix)) {
+                directoryName = name.substring(0, name.length() - suffix.length());
+                break;
+            }
+        }
+        if (directoryName == null) {
+            return null;
+        }
+        Path directory = requestedPath.resolveSibling(directoryName);
+        return Files.isDirectory(directory) ? directory : null;
+    }
+
+    /**
+     * 判断归档请求是否要求gzip压缩
+     * @param requestedPath 请求的文件路径
+     * @return 以 .tar.gz 或 .tgz 结尾时返回true
+     */
+    public static boolean isCompressedName(Path requestedPath) {
+        String name = requestedPath.getFileName().toString().toLowerCase();
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * 把目录树归档后写入输出流，直到归档结束或出错才返回。
+     * @param directory 要归档的目录，归档内的路径以该目录名开头
+     * @param compress 是否使用gzip压缩
+     * @param out 目标输出流（通常是数据连接）
+     * @return 写入输出流的字节数
+     * @throws FtpDataConnectionManager.TruncatedTransferException 如果某个文件在归档过程中被截断，归档被中止
+     * @throws IOException 如果读取文件或写入输出流失败
+     */
+    public long stream(Path directory, boolean compress, OutputStream out) throws IOException {
+        ChunkPipe pipe = new ChunkPipe();
+        READER_POOL.submit(() -> produce(directory, compress, pipe));
+
+        long totalBytes = 0;
+        try {
+            while (true) {
+                Chunk chunk = pipe.take();
+                if (chunk.error instanceof TruncatedEntryException) {
+                    throw new FtpDataConnectionManager.TruncatedTransferException(chunk.error.getMessage(), totalBytes);
+                }
+                if (chunk.error != null) {
+                    throw new IOException("读取归档内容失败：" + chunk.error.getMessage(), chunk.error);
+                }
+                if (chunk.length < 0) {
+                    break;
+                }
+                out.write(chunk.data, 0, chunk.length);
+                totalBytes += chunk.length;
+                pipe.recycle(chunk);
+            }
+            out.flush();
+        } finally {
+            // 无论正常结束还是客户端断开，都让读取线程停下来
+            pipe.cancel();
+            pipe.release();
+        }
+        return totalBytes;
+    }
+
+    /**
+     * 读取线程：遍历目录并生成tar数据
+     */
+    private void produce(Path directory, boolean compress, ChunkPipe pipe) {
+        // 所有文件共用一个读缓冲区，避免为大量小文件反复分配
+        try (BufferPool.Lease lease = BufferPool.getInstance().acquire(chunkSize, false)) {
+            OutputStream archiveOut = compress ? new GZIPOutputStream(pipe, chunkSize) : pipe;
+            Path base = directory.toAbsolutePath().normalize().getParent();
+            byte[] buffer = lease.buffer().array();
+            // 正在遍历的各级目录中需要隐藏的名称，每个目录只计算一次
+            Deque<Set<String>> hiddenNames = new ArrayDeque<>();
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    // 归档与文件列表隐藏同样的条目（去重存储、服务器自身的目录）
+                    if (!dir.equals(directory) && !DirectoryIndex.isListed(dir, hiddenNames.peek())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    hiddenNames.push(DirectoryIndex.hiddenNames(dir));
+                    writeHeader(archiveOut, entryName(base, dir) + "/", '5', 0, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // 只归档普通文件，符号链接等特殊文件以及上传中的临时文件被跳过
+                    if (attrs.isRegularFile() && DirectoryIndex.isListed(file, hiddenNames.peek())) {
+                        writeFile(archiveOut, entryName(base, file), file, attrs, buffer);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    hiddenNames.pop();
+                    return super.postVisitDirectory(dir, e);
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    AuditLog.error("归档时无法访问：" + file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            // 归档以两个全零块结束
+            archiveOut.write(new byte[BLOCK_SIZE * 2]);
+            archiveOut.close();
+        } catch (Throwable e) {
+            pipe.fail(e);
+        } finally {
+            pipe.release();
+        }
+    }
+
+    private static String entryName(Path base, Path path) {
+        Path relative = base == null ? path : base.relativize(path.toAbsolutePath().normalize());
+        return relative.toString().replace('\\', '/');
+    }
+
+    private static void writeFile(OutputStream archiveOut, String name, Path file, BasicFileAttributes attrs, byte[] buffer) throws IOException {
+        long size = attrs.size();
+        writeHeader(archiveOut, name, '0', size, attrs);
+
+        long remaining = size;
+        try (InputStream fileIn = Files.newInputStream(file)) {
+            while (remaining > 0) {
+                int bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    break;
+                }
+                archiveOut.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+        // 文件在归档过程中被截断：头部已经声明了原来的长度，无法生成正确的条目，中止整个归档
+        if (remaining > 0) {
+            throw new TruncatedEntryException("文件 " + name + " 在归档过程中被截断，已读取 " + (size - remaining) + " / " + size + " 字节");
+        }
+        writePadding(archiveOut, size);
+    }
+
+    private static void writeHeader(OutputStream archiveOut, String name, char type, long size, BasicFileAttributes attrs) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            // GNU扩展：先写一个类型为'L'的条目，内容是完整名称
+            byte[] longName = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+            archiveOut.write(buildHeader(LONG_LINK_NAME.getBytes(StandardCharsets.US_ASCII), 'L', longName.length, 0, 0644));
+            archiveOut.write(longName);
+            writePadding(archiveOut, longName.length);
+            nameBytes = Arrays.copyOf(nameBytes, 100);
+        }
+        int mode = type == '5' ? 0755 : 0644;
+        archiveOut.write(buildHeader(nameBytes, type, size, attrs.lastModifiedTime().toMillis() / 1000, mode));
+    }
+
+    private static byte[] buildHeader(byte[] name, char type, long size, long mtimeSeconds, int mode) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        writeOctal(header, 100, 8, mode);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        if (size > MAX_OCTAL_SIZE) {
+            // GNU扩展：超过8GB的文件大小使用base-256编码
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        } else {
+            writeOctal(header, 124, 12, size);
+        }
+        writeOctal(header, 136, 12, mtimeSeconds);
+        header[156] = (byte) type;
+        byte[] magic = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, header, 257, magic.length);
+        byte[] owner = "ftp".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(owner, 0, header, 265, owner.length);
+        System.arraycopy(owner, 0, header, 297, owner.length);
+
+        // 计算校验和时校验和字段本身按空格计算
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        writeOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        // 字段末尾保留一个NUL结束符，其余位置用前导零填满
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static void writePadding(OutputStream archiveOut, long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            archiveOut.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    /**
+     * 读取线程发现文件在归档过程中被截断
+     */
+    private static final class TruncatedEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TruncatedEntryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 读取线程与发送线程之间的数据块
+     */
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+        Throwable error;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * 有界的数据块管道：读取线程通过 OutputStream 接口写入，数据块写满后交给发送线程；
+     * 发送完的数据块被回收复用，整个管道的内存占用固定为 (prefetchChunks + 1) 个数据块。
+     * 数据块的缓冲区从缓冲区池租用，读取线程和发送线程都调用 {@link #release()} 之后才归还，
+     * 任何一方提前结束时另一方仍可能持有数据块。
+     */
+    private final class ChunkPipe extends OutputStream {
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(prefetchChunks + 1);
+        private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(prefetchChunks + 1);
+        private final List<BufferPool.Lease> leases = new ArrayList<>();
+        // 尚未结束的线程数：读取线程和发送线程
+        private final AtomicInteger users = new AtomicInteger(2);
+        private Chunk current;
+        private volatile boolean cancelled;
+
+        ChunkPipe() {
+            BufferPool pool = BufferPool.getInstance();
+            for (int i = 0; i < prefetchChunks; i++) {
+                BufferPool.Lease lease = pool.acquire(chunkSize, false);
+                leases.add(lease);
+                free.add(new Chunk(lease.buffer().array()));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (current == null) {
+                    current = acquire();
+                }
+                int copied = Math.min(length, current.data.length - current.length);
+                System.arraycopy(bytes, offset, current.data, current.length, copied);
+                current.length += copied;
+                offset += copied;
+                length -= copied;
+                if (current.length == current.data.length) {
+                    publish(current);
+                    current = null;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null && current.length > 0) {
+                publish(current);
+            }
+            current = null;
+            Chunk end = new Chunk(new byte[0]);
+            end.length = -1;
+            publish(end);
+        }
+
+        void fail(Throwable error) {
+            if (cancelled) {
+                return;
+            }
+            Chunk failure = new Chunk(new byte[0]);
+            failure.error = error;
+            filled.clear();
+            filled.offer(failure);
+        }
+
+        Chunk take() throws IOException {
+            try {
+                return filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待归档数据时被中断");
+            }
+        }
+
+        void recycle(Chunk chunk) {
+            chunk.length = 0;
+            free.offer(chunk);
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * 读取线程和发送线程各调用一次，两者都结束后归还所有数据块的缓冲区
+         */
+        void release() {
+            if (users.decrementAndGet() == 0) {
+                for (BufferPool.Lease lease : leases) {
+                    lease.close();
+                }
+            }
+        }
+
+        private Chunk acquire() throws IOException {
+            try {
+                while (true) {
+                    checkCancelled();
+                    Chunk chunk = free.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk != null) {
+                        return chunk;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("归档读取线程被中断");
+            }
+        }
+
+        private void publish(Chunk chunk) throws IOException {
+            try {
+                while (!filled.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    checkCancelled();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("归档读取线程被中断");
+            }
+        }
+
+        private void checkCancelled() throws IOException {
+            if (cancelled) {
+                throw new IOException("归档传输已取消");
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 显式FTPS（AUTH TLS）使用的TLS上下文。
+ * 控制连接和数据连接共用同一个 SSLContext，因此也共用同一个服务端会话缓存：
+ * 客户端在数据连接上可以恢复控制连接的TLS会话，每次传输只需一次简化握手，
+ * 而不是一次完整的密钥交换。
+ */
+public final class TlsContext {
+    // 全局唯一的TLS上下文，未启用或加载失败时为null
+    private static final TlsContext INSTANCE = load();
+
+    private final SSLSocketFactory socketFactory;
+    private final String[] enabledProtocols;
+    // 是否要求客户端在登录前先执行AUTH TLS
+    private final boolean required;
+    // 握手的最长等待时间，客户端建立连接后不发送握手数据时不会一直占用线程
+    private final int handshakeTimeoutMillis;
+
+    private TlsContext(SSLContext sslContext, String[] enabledProtocols, boolean required, int handshakeTimeoutMillis) {
+        this.socketFactory = sslContext.getSocketFactory();
+        this.enabledProtocols = enabledProtocols;
+        this.required = required;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    /**
+     * 获取全局TLS上下文
+     * @return TLS上下文，未启用FTPS或证书加载失败时返回null
+     */
+    public static TlsContext getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 获取配置的密钥库位置。密钥库没有默认位置，启用FTPS时必须显式配置 tls.keystore
+     * @return 密钥库路径，未配置时返回null
+     */
+    public static Path getKeystoreFile() {
+        String keystorePath = ServerConfig.getInstance().getString("tls.keystore", null);
+        return keystorePath == null || keystorePath.isEmpty() ? null : Paths.get(keystorePath);
+    }
+
+    /**
+     * @return 是否要求客户端在登录前先执行AUTH TLS
+     */
+    public boolean isRequired() {
+        return required;
+    }
+
+    /**
+     * 以服务端身份在已建立的连接上完成TLS握手。
+     * 用于AUTH TLS之后的控制连接和PROT P时的数据连接；数据连接上客户端通常会恢复控制连接的会话，
+     * 从而跳过完整握手。握手期间使用 tls.handshake.timeout.seconds 作为读超时，完成后恢复原来的超时。
+     * @param socket 明文连接
+     * @return 加密后的连接
+     * @throws IOException 如果握手失败
+     */
+    public SSLSocket secure(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        if (enabledProtocols != null) {
+            sslSocket.setEnabledProtocols(enabledProtocols);
+        }
+        try {
+            int previousTimeout = socket.getSoTimeout();
+            sslSocket.setSoTimeout(handshakeTimeoutMillis);
+            sslSocket.startHandshake();
+            sslSocket.setSoTimeout(previousTimeout);
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+        return sslSocket;
+    }
+
+    /**
+     * 从配置的密钥库创建TLS上下文，并设置服务端会话缓存。
+     * 密钥库路径和口令都没有默认值；密钥库位于某个FTP根目录内时拒绝加载，
+     * 避免私钥与用户文件放在一起（PathResolver 同样禁止客户端访问该文件）。
+     */
+    private static TlsContext load() {
+        ServerConfig config = ServerConfig.getInstance();
+        if (!config.getBoolean("tls.enabled", false)) {
+            return null;
+        }
+
+        Path keystorePath = getKeystoreFile();
+        String password = config.getString("tls.keystore.password", null);
+        if (keystorePath == null || password == null || password.isEmpty()) {
+            AuditLog.error("启用FTPS必须配置 tls.keystore 和 tls.keystore.password，FTPS不可用", null);
+            return null;
+        }
+        Path servedRoot = servedRootContaining(keystorePath);
+        if (servedRoot != null) {
+            AuditLog.error("TLS密钥库 " + keystorePath + " 位于FTP根目录 " + servedRoot + " 内，FTPS不可用", null);
+            return null;
+        }
+        try (InputStream input = Files.newInputStream(keystorePath)) {
+            KeyStore keyStore = KeyStore.getInstance(config.getString("tls.keystore.type", "PKCS12"));
+            keyStore.load(input, password.toCharArray());
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password.toCharArray());
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+            // 控制连接和数据连接共用的会话缓存
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize(config.getInt("tls.session.cache.size", 10000));
+            sessionContext.setSessionTimeout(config.getInt("tls.session.timeout.seconds", 3600));
+
+            String protocols = config.getString("tls.protocols", "TLSv1.3,TLSv1.2");
+            AuditLog.info("FTPS已启用，密钥库 " + keystorePath + "，协议 " + protocols);
+            int handshakeTimeout = (int) Math.max(1, config.getLong("tls.handshake.timeout.seconds", 30)) * 1000;
+            return new TlsContext(sslContext, protocols.split("\\s*,\\s*"), config.getBoolean("tls.required", false), handshakeTimeout);
+        } catch (IOException | GeneralSecurityException e) {
+            AuditLog.error("加载TLS密钥库失败，FTPS不可用：" + keystorePath, e);
+            return null;
+        }
+    }
+
+    /**
+     * 查找包含密钥库的FTP根目录，按真实路径比较，符号链接也不能绕过
+     * @return 包含密钥库的根目录，不在任何根目录内时返回null
+     */
+    private static Path servedRootContaining(Path keystorePath) {
+        Path keystore;
+        try {
+            keystore = keystorePath.toRealPath();
+        } catch (IOException e) {
+            // 文件不存在等错误在随后读取密钥库时报告
+            return null;
+        }
+        for (Path root : PathResolver.configuredRoots()) {
+            Path realRoot;
+            try {
+                realRoot = root.toRealPath();
+            } catch (IOException e) {
+                realRoot = root;
+            }
+            if (keystore.startsWith(realRoot)) {
+                return root;
+            }
+        }
+        return null;
+    }
+}
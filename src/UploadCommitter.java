@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 上传文件的提交策略。
+ * 上传先写入同目录下的临时文件，完成后按配置的策略刷盘，再原子地重命名为目标文件：
+ * 客户端断开或服务器崩溃时目标路径要么是旧内容，要么是完整的新内容，不会出现被截断的文件。
+ * 刷盘策略：
+ * none  - 不主动刷盘，只保证原子可见；
+ * file  - 每个文件刷盘数据，重命名后立即刷盘所在目录；
+ * group - 每个文件刷盘数据，目录的刷盘在并发上传之间合并：同一时间只有一个线程执行目录刷盘，
+ *         等待期间完成重命名的上传由下一次刷盘一并覆盖，大量小文件上传时目录刷盘次数远少于文件数。
+ *         只合并目录刷盘：每个文件的数据刷盘（fdatasync）仍由各自的上传线程执行一次，次数与 file 策略相同
+ *         （Java无法把多个文件的数据刷盘合并成一次系统调用）。
+ */
+public final class UploadCommitter {
+    // 临时文件名的前缀，完整格式为 ".ftp-upload-运行标识-序号"
+    private static final String STAGING_PREFIX = ".ftp-upload-";
+    // 临时文件名的完整格式，只有完全符合的文件才被视为临时文件，客户端也不能创建这类名称
+    private static final Pattern STAGING_NAME = Pattern.compile("\\.ftp-upload-([0-9a-f]{16})-[0-9]+");
+    // 本次运行的标识，写入临时文件名；启动清理只删除其他运行遗留的临时文件，不会误删正在进行的上传
+    private static final String RUN_ID = String.format("%016x", new SecureRandom().nextLong());
+
+    // 全局唯一的提交器，必须在上面的常量之后初始化
+    private static final UploadCommitter INSTANCE = new UploadCommitter();
+
+    private static final int POLICY_NONE = 0;
+    private static final int POLICY_FILE = 1;
+    private static final int POLICY_GROUP = 2;
+
+    // 是否先写入临时文件再重命名
+    private final boolean atomic;
+    // 刷盘策略
+    private final int fsyncPolicy;
+    // 组提交时，发起目录刷盘前等待更多上传加入的时间
+    private final long groupWindowNanos;
+
+    // 组提交的状态，由 groupLock 保护
+    private final Object groupLock = new Object();
+    // 等待刷盘的目录
+    private Set<Path> pendingDirectories = new HashSet<>();
+    // 已发放的最大序号，以及已刷盘覆盖的最大序号
+    private long requestedTicket;
+    private long completedTicket;
+    // 是否有线程正在执行目录刷盘
+    private boolean syncing;
+    // 临时文件序号
+    private final AtomicLong nextStagingId = new AtomicLong();
+
+    /**
+     * 构造函数
+     */
+    private UploadCommitter() {
+        ServerConfig config = ServerConfig.getInstance();
+        this.atomic = config.getBoolean("upload.atomic", true);
+        String policy = config.getString("upload.fsync", "group").trim().toLowerCase();
+        if (policy.equals("none")) {
+            this.fsyncPolicy = POLICY_NONE;
+        } else if (policy.equals("file")) {
+            this.fsyncPolicy = POLICY_FILE;
+        } else {
+            this.fsyncPolicy = POLICY_GROUP;
+        }
+        this.groupWindowNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("upload.group.commit.window.ms", 2));
+    }
+
+    /**
+     * 获取全局提交器
+     * @return 上传提交器
+     */
+    public static UploadCommitter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 上传是否先写入临时文件再原子重命名
+     */
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    /**
+     * 为目标文件生成同目录下的临时文件路径（同一文件系统内才能原子重命名）。
+     * @param target 目标文件
+     * @return 临时文件路径
+     */
+    public Path stagingPathFor(Path target) {
+        return target.resolveSibling(STAGING_PREFIX + RUN_ID + "-" + nextStagingId.incrementAndGet());
+    }
+
+    /**
+     * 判断是否为上传中的临时文件，文件列表中应隐藏这类文件，客户端也不能访问
+     * @param path 路径
+     * @return 如果是临时文件则返回true
+     */
+    public static boolean isStagingFile(Path path) {
+        Path name = path.getFileName();
+        return name != null && STAGING_NAME.matcher(name.toString()).matches();
+    }
+
+    /**
+     * 在后台删除各用户根目录下由之前的运行（例如崩溃时）遗留的临时文件。
+     * 临时文件名带有运行标识，本次运行创建的临时文件不会被删除，因此可以与会话同时进行。
+     * @param roots 要清理的根目录
+     */
+    public void sweepStaleStagingFiles(Collection<Path> roots) {
+        Thread sweeper = new Thread(() -> {
+            long removed = 0;
+            for (Path root : roots) {
+                removed += sweep(root);
+            }
+            AuditLog.info("上传临时文件清理完成，删除遗留文件 " + removed + " 个");
+        }, "ftp-staging-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    private long sweep(Path root) {
+        long[] removed = new long[1];
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    // 去重存储由 ContentStore 自行清理
+                    return ContentStore.getInstance().isInternalPath(directory)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    Matcher matcher = STAGING_NAME.matcher(file.getFileName().toString());
+                    if (attributes.isRegularFile() && matcher.matches() && !matcher.group(1).equals(RUN_ID)) {
+                        DirectoryIndex.Change change = DirectoryIndex.getInstance().beginChange(file);
+                        try {
+                            if (Files.deleteIfExists(file)) {
+                                removed[0]++;
+                            }
+                        } catch (IOException e) {
+                            AuditLog.error("无法删除遗留的上传临时文件：" + file, e);
+                        } finally {
+                            change.commit();
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // 无权读取的目录跳过，继续清理其他目录
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            AuditLog.error("清理上传临时文件失败：" + root, e);
+        }
+        return removed[0];
+    }
+
+    /**
+     * 按策略把文件数据刷到磁盘，在关闭文件之前调用。file 和 group 策略下每个文件都刷盘一次，group 不合并这一步
+     * @param channel 已写完的文件通道
+     * @throws IOException 如果刷盘失败
+     */
+    public void force(FileChannel channel) throws IOException {
+        if (fsyncPolicy != POLICY_NONE) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 把已关闭的临时文件原子地重命名为目标文件，并按策略刷盘目标所在目录
+     * @param staging 临时文件
+     * @param target 目标文件
+     * @throws IOException 如果重命名或刷盘失败
+     */
+    public void publish(Path staging, Path target) throws IOException {
+        copyPermissions(target, staging);
+        try {
+            Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * 覆盖已有文件时，让临时文件沿用目标文件的POSIX权限，否则重命名后文件会变成新建文件的默认权限
+     */
+    private static void copyPermissions(Path target, Path staging) throws IOException {
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = Files.getPosixFilePermissions(target);
+        } catch (NoSuchFileException | UnsupportedOperationException e) {
+            // 新文件保持默认权限；非POSIX文件系统没有可复制的权限
+            return;
+        }
+        Files.setPosixFilePermissions(staging, permissions);
+    }
+
+    /**
+     * 目录中的条目被创建或重命名后调用，按策略刷盘该目录，使目录项本身持久化
+     * @param directory 被修改的目录
+     * @throws IOException 如果刷盘失败
+     */
+    public void syncDirectory(Path directory) throws IOException {
+        if (fsyncPolicy == POLICY_FILE) {
+            forceDirectory(directory);
+        } else if (fsyncPolicy == POLICY_GROUP) {
+            groupSync(directory);
+        }
+    }
+
+    /**
+     * 组提交：领取序号后等待，直到某次目录刷盘覆盖了该序号；没有线程在刷盘时由自己发起。
+     * 序号在重命名完成之后领取，因此在它之后开始的刷盘一定能看到这次重命名。
+     */
+    private void groupSync(Path directory) throws IOException {
+        long ticket;
+        synchronized (groupLock) {
+            pendingDirectories.add(directory);
+            ticket = ++requestedTicket;
+        }
+        while (true) {
+            Set<Path> directories;
+            long target;
+            synchronized (groupLock) {
+                while (syncing && completedTicket < ticket) {
+                    try {
+                        groupLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("等待目录刷盘时被中断");
+                    }
+                }
+                if (completedTicket >= ticket) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            // 由本线程发起刷盘，先稍等片刻让并发的上传加入这一批
+            if (groupWindowNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(groupWindowNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (groupLock) {
+                directories = pendingDirectories;
+                pendingDirectories = new HashSet<>();
+                target = requestedTicket;
+            }
+
+            IOException failure = null;
+            for (Path pending : directories) {
+                try {
+                    forceDirectory(pending);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            synchronized (groupLock) {
+                syncing = false;
+                if (failure == null) {
+                    completedTicket = Math.max(completedTicket, target);
+                } else {
+                    // 刷盘失败：这一批的目录重新排队，由下一个线程重试，本线程报告错误
+                    pendingDirectories.addAll(directories);
+                }
+                groupLock.notifyAll();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * 刷盘目录本身。部分平台（例如Windows）不能以读方式打开目录，这时目录项由文件系统自行保证，直接忽略。
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
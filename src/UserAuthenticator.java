@@ -17,18 +17,26 @@ public class UserAuthenticator {
         loadUsers();
     }
 
+    /**
+     * 获取用户凭据文件的位置：工作目录下的 users.properties
+     * @return 凭据文件路径
+     */
+    public static Path getUsersFile() {
+        return Paths.get(System.getProperty("user.dir"), "users.properties");
+    }
+
     /**
      * 从外部配置文件加载用户凭据
      */
     private void loadUsers() {
-        Path configFilePath = Paths.get(System.getProperty("user.dir"), "users.properties");
+        Path configFilePath = getUsersFile();
 
         try (InputStream input = Files.newInputStream(configFilePath);
              InputStreamReader reader = new InputStreamReader(input, "UTF-8")) {
             // 加载配置文件
             users.load(reader);
         } catch (IOException e) {
-            e.printStackTrace();
+            AuditLog.error("加载用户配置失败：" + configFilePath, e);
         }
     }
 